@@ -0,0 +1,114 @@
+package net.lecousin.framework.network.mime;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import net.lecousin.framework.core.test.LCCoreAbstractTest;
+import net.lecousin.framework.io.data.ByteArray;
+import net.lecousin.framework.network.mime.header.MimeHeaders;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compare the byte-by-byte parsing of headers (used for Bytes.Readable input),
+ * with the parsing scanning 8 bytes at a time (used for ByteBuffer input).
+ * It is compiled only with the benchmark profile (mvn -Pbenchmark test-compile),
+ * then run using the main method, with the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeadersConsumerBenchmark {
+
+	@Param({ "http", "mail" })
+	public String headers;
+	
+	private byte[] bytes;
+	private ByteBuffer heapBuffer;
+	private ByteBuffer directBuffer;
+	
+	/** Initialization. */
+	@Setup
+	public void setup() throws Exception {
+		LCCoreAbstractTest.init();
+		StringBuilder s = new StringBuilder();
+		if ("http".equals(headers)) {
+			s.append("Host: www.example.com\r\n");
+			s.append("User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:78.0) Gecko/20100101 Firefox/78.0\r\n");
+			s.append("Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8\r\n");
+			s.append("Accept-Language: en-US,en;q=0.5\r\n");
+			s.append("Accept-Encoding: gzip, deflate, br\r\n");
+			s.append("Connection: keep-alive\r\n");
+			s.append("Cookie: session=0123456789abcdef0123456789abcdef; theme=dark; lang=en\r\n");
+			s.append("Upgrade-Insecure-Requests: 1\r\n");
+			s.append("Cache-Control: max-age=0\r\n");
+		} else {
+			for (int i = 0; i < 10; ++i)
+				s.append("Received: from mx").append(i).append(".example.com (mx").append(i)
+				.append(".example.com [192.168.0.").append(i).append("])\r\n\tby mail.example.com with ESMTPS id abcdef").append(i)
+				.append("\r\n\tfor <user@example.com>; Mon, 1 Jun 2020 10:00:00 +0200\r\n");
+			s.append("DKIM-Signature: v=1; a=rsa-sha256; c=relaxed/relaxed; d=example.com; s=selector;\r\n")
+				.append("\th=from:to:subject:date:message-id; bh=47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU=;\r\n")
+				.append("\tb=dzdVyOfAKCdLXdJOc9G2q8LoXSlEniSbav+yuU4zGeeruD00lszZVoG4ZHRNiYzR\r\n");
+			s.append("From: Sender <sender@example.com>\r\n");
+			s.append("To: Receiver <user@example.com>\r\n");
+			s.append("Subject: =?UTF-8?Q?Test_message?=\r\n");
+			s.append("Message-ID: <0123456789@example.com>\r\n");
+			s.append("MIME-Version: 1.0\r\n");
+			s.append("Content-Type: multipart/alternative; boundary=\"0000000000001234567890\"\r\n");
+		}
+		s.append("\r\n");
+		bytes = s.toString().getBytes(StandardCharsets.US_ASCII);
+		heapBuffer = ByteBuffer.wrap(bytes);
+		directBuffer = ByteBuffer.allocateDirect(bytes.length);
+		directBuffer.put(bytes);
+	}
+	
+	/** Byte by byte parsing. */
+	@Benchmark
+	public MimeHeaders byteByByte() {
+		MimeHeaders h = new MimeHeaders();
+		h.createConsumer().consume(new ByteArray(bytes));
+		return h;
+	}
+	
+	/** Parsing a heap ByteBuffer. */
+	@Benchmark
+	public MimeHeaders heapByteBuffer() {
+		MimeHeaders h = new MimeHeaders();
+		heapBuffer.clear();
+		h.createConsumer().consume(heapBuffer);
+		return h;
+	}
+	
+	/** Parsing a direct ByteBuffer. */
+	@Benchmark
+	public MimeHeaders directByteBuffer() {
+		MimeHeaders h = new MimeHeaders();
+		directBuffer.clear();
+		h.createConsumer().consume(directBuffer);
+		return h;
+	}
+	
+	/** Run the benchmark. */
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(HeadersConsumerBenchmark.class.getSimpleName()).build()).run();
+	}
+	
+}
@@ -0,0 +1,120 @@
+package net.lecousin.framework.network.mime;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent cache with a maximum number of entries, evicting entries using the CLOCK algorithm
+ * (an approximation of least recently used).
+ * Reads do not lock, insertions are synchronized. A maximum size of 0 disables the cache.
+ * @param <K> type of key
+ * @param <V> type of value
+ */
+public class BoundedCache<K, V> {
+
+	/** Constructor. */
+	public BoundedCache(int maxSize) {
+		setMaxSize(maxSize);
+	}
+
+	private static final class Entry<K, V> {
+		private Entry(K key, V value) {
+			this.key = key;
+			this.value = value;
+		}
+
+		private final K key;
+		private final V value;
+		private volatile boolean referenced = false;
+	}
+
+	private final Map<K, Entry<K, V>> map = new ConcurrentHashMap<>();
+	private Entry<K, V>[] clock;
+	private int size;
+	private int hand;
+	private volatile int maxSize;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/** Set the maximum number of entries, 0 to disable the cache. Changing the size clears the cache. */
+	@SuppressWarnings("unchecked")
+	public synchronized void setMaxSize(int maxSize) {
+		if (maxSize < 0)
+			throw new IllegalArgumentException("Maximum size cannot be negative: " + maxSize);
+		map.clear();
+		clock = new Entry[maxSize];
+		size = 0;
+		hand = 0;
+		this.maxSize = maxSize;
+	}
+
+	/** Return the value associated with the given key, or null. */
+	public V get(K key) {
+		if (maxSize == 0)
+			return null;
+		Entry<K, V> e = map.get(key);
+		if (e == null) {
+			misses.increment();
+			return null;
+		}
+		e.referenced = true;
+		hits.increment();
+		return e.value;
+	}
+
+	/** Associate the given value to the key, evicting an entry if the cache is full. Nothing is done if the key is already present. */
+	public synchronized void put(K key, V value) {
+		if (maxSize == 0 || map.containsKey(key))
+			return;
+		Entry<K, V> e = new Entry<>(key, value);
+		if (size < clock.length) {
+			clock[size++] = e;
+		} else {
+			// give a second chance to the entries used since the last sweep
+			while (clock[hand].referenced) {
+				clock[hand].referenced = false;
+				hand = (hand + 1) % clock.length;
+			}
+			map.remove(clock[hand].key);
+			clock[hand] = e;
+			hand = (hand + 1) % clock.length;
+		}
+		map.put(key, e);
+	}
+
+	/** Remove all entries. */
+	public synchronized void clear() {
+		map.clear();
+		for (int i = 0; i < size; ++i)
+			clock[i] = null;
+		size = 0;
+		hand = 0;
+	}
+
+	/** Return the current number of entries. */
+	public int size() {
+		return map.size();
+	}
+
+	/** Return the number of successful calls to get. */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/** Return the number of calls to get which did not find any entry. */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/** Reset the hits and misses counters. */
+	public void resetCounters() {
+		hits.reset();
+		misses.reset();
+	}
+
+}
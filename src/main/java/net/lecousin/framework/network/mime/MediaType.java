@@ -0,0 +1,144 @@
+package net.lecousin.framework.network.mime;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import net.lecousin.framework.network.mime.header.ParameterizedHeaderValue;
+import net.lecousin.framework.util.Pair;
+
+/**
+ * Immutable media type, such as text/html;charset=utf-8 or application/atom+xml.
+ * Type and sub-type are in lower case, and parameter names too.
+ * <br/>
+ * Instances are shared: {@link #parse(String)} parses each distinct string only once using a bounded cache,
+ * and {@link #getEssence()} returns a shared instance without parameters, so media types can be used as keys
+ * with cheap hashing and equality.
+ */
+public final class MediaType {
+
+	private MediaType(String type, String subType, Map<String, String> parameters, MediaType essence) {
+		this.type = type;
+		this.subType = subType;
+		this.parameters = parameters;
+		this.essence = essence != null ? essence : this;
+		int plus = subType.lastIndexOf('+');
+		suffix = plus >= 0 ? subType.substring(plus + 1) : null;
+		hash = type.hashCode() * 31 + subType.hashCode() + parameters.hashCode();
+	}
+	
+	private final String type;
+	private final String subType;
+	private final String suffix;
+	private final Map<String, String> parameters;
+	private final MediaType essence;
+	private final int hash;
+	
+	private static final BoundedCache<String, MediaType> cache = new BoundedCache<>(256);
+	
+	/** Return the cache of parsed media types, by string. Its maximum size can be changed, or set to 0 to disable it. */
+	public static BoundedCache<String, MediaType> getCache() {
+		return cache;
+	}
+	
+	/** Return the media type with the given type and sub-type, without parameter. */
+	public static MediaType of(String type, String subType) {
+		return parse(type + '/' + subType);
+	}
+	
+	/** Parse the given media type, with optional parameters, or return null if it is not in the form type/subtype. */
+	public static MediaType parse(String value) {
+		MediaType t = cache.get(value);
+		if (t != null)
+			return t;
+		ParameterizedHeaderValue v = new ParameterizedHeaderValue();
+		try {
+			v.parseRawValue(value);
+		} catch (MimeException e) {
+			return null;
+		}
+		String main = v.getMainValue();
+		int i = main != null ? main.indexOf('/') : -1;
+		if (i <= 0 || i == main.length() - 1)
+			return null;
+		String type = main.substring(0, i).trim().toLowerCase(Locale.US);
+		String subType = main.substring(i + 1).trim().toLowerCase(Locale.US);
+		List<Pair<String, String>> params = v.getParameters();
+		if (params.isEmpty()) {
+			String essence = type + '/' + subType;
+			t = essence.equals(value) ? null : cache.get(essence);
+			if (t == null) {
+				t = new MediaType(type, subType, Collections.emptyMap(), null);
+				cache.put(essence, t);
+			}
+		} else {
+			Map<String, String> map = new LinkedHashMap<>();
+			for (Pair<String, String> p : params)
+				map.put(p.getValue1().toLowerCase(Locale.US), p.getValue2());
+			t = new MediaType(type, subType, Collections.unmodifiableMap(map), of(type, subType));
+		}
+		cache.put(value, t);
+		return t;
+	}
+	
+	/** Return the type in lower case, such as text. */
+	public String getType() {
+		return type;
+	}
+	
+	/** Return the sub-type in lower case, such as html or atom+xml. */
+	public String getSubType() {
+		return subType;
+	}
+	
+	/** Return the structured syntax suffix, such as xml for application/atom+xml, or null. */
+	public String getSuffix() {
+		return suffix;
+	}
+	
+	/** Return the parameters, by lower case name. */
+	public Map<String, String> getParameters() {
+		return parameters;
+	}
+	
+	/** Return the value of the given parameter (case insensitive), or null. */
+	public String getParameter(String name) {
+		return parameters.isEmpty() ? null : parameters.get(name.toLowerCase(Locale.US));
+	}
+	
+	/** Return this media type without parameters, which is a shared instance. */
+	public MediaType getEssence() {
+		return essence;
+	}
+	
+	/** Return true if the type is the given one (case insensitive). */
+	public boolean isType(String type) {
+		return this.type.equalsIgnoreCase(type);
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof MediaType))
+			return false;
+		MediaType o = (MediaType)obj;
+		return hash == o.hash && type.equals(o.type) && subType.equals(o.subType) && parameters.equals(o.parameters);
+	}
+	
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder(type).append('/').append(subType);
+		for (Map.Entry<String, String> p : parameters.entrySet())
+			s.append(';').append(p.getKey()).append('=').append(p.getValue());
+		return s.toString();
+	}
+	
+}
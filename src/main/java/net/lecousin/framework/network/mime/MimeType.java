@@ -39,4 +39,18 @@ public final class MimeType {
 		defaultByExtension.put("txt", TXT);
 	}
 	
+	/** Return the MIME type of the given file name or path based on its extension, or null if unknown.
+	 * Contrary to {@link #defaultByExtension}, this uses the complete list of types of {@link MimeTypeRegistry#getDefault()}.
+	 */
+	public static String getTypeForFileName(CharSequence name) {
+		return MimeTypeRegistry.getDefault().getTypeForFileName(name);
+	}
+	
+	/** Return the MIME type for the given extension (without leading dot, case insensitive), or null if unknown.
+	 * Contrary to {@link #defaultByExtension}, this uses the complete list of types of {@link MimeTypeRegistry#getDefault()}.
+	 */
+	public static String getTypeByExtension(CharSequence extension) {
+		return MimeTypeRegistry.getDefault().getTypeByExtension(extension);
+	}
+	
 }
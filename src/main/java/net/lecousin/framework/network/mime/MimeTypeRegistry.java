@@ -0,0 +1,184 @@
+package net.lecousin.framework.network.mime;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import net.lecousin.framework.application.LCCore;
+
+/**
+ * Registry of MIME types by file extension, loaded from files in the mime.types format:
+ * each line contains a media type followed by its extensions, and lines starting with # are comments.
+ * <br/>
+ * Extensions are stored in a trie of reversed extensions, so the type of a file name or path is found by reading
+ * its last characters, case insensitively, without creating any string.
+ * Extensions may contain dots, such as tar.gz, in which case the longest registered extension wins.
+ * <br/>
+ * The default registry is loaded when first used, from the mime.types resource of this package, then from the file
+ * given by the system property {@value #OVERRIDE_PROPERTY} if any, whose lines override the default ones.
+ * A registry should be fully loaded before being used by several threads.
+ */
+public class MimeTypeRegistry {
+
+	/** System property giving the path of a file in the mime.types format, overriding the default types. */
+	public static final String OVERRIDE_PROPERTY = "net.lecousin.framework.network.mime.types";
+
+	private static final class DefaultHolder {
+		private static final MimeTypeRegistry instance = createDefault();
+	}
+
+	/** Return the default registry, loading it if not yet done. */
+	public static MimeTypeRegistry getDefault() {
+		return DefaultHolder.instance;
+	}
+
+	private static MimeTypeRegistry createDefault() {
+		MimeTypeRegistry registry = new MimeTypeRegistry();
+		try (InputStream input = MimeTypeRegistry.class.getResourceAsStream("mime.types")) {
+			if (input != null)
+				registry.load(input);
+		} catch (IOException e) {
+			LCCore.getApplication().getLoggerFactory().getLogger(MimeTypeRegistry.class).error("Unable to load default MIME types", e);
+		}
+		String path = System.getProperty(OVERRIDE_PROPERTY);
+		if (path != null) {
+			try (InputStream input = new FileInputStream(new File(path))) {
+				registry.load(input);
+			} catch (IOException e) {
+				LCCore.getApplication().getLoggerFactory().getLogger(MimeTypeRegistry.class)
+					.error("Unable to load MIME types from " + path, e);
+			}
+		}
+		return registry;
+	}
+
+	/** Node of the trie, for a character of an extension read from the end. */
+	private static final class Node {
+		private static final char[] NO_CHAR = new char[0];
+		private static final Node[] NO_NODE = new Node[0];
+
+		private char[] chars = NO_CHAR;
+		private Node[] children = NO_NODE;
+		private String type;
+
+		private Node get(char c) {
+			for (int i = 0; i < chars.length; ++i)
+				if (chars[i] == c)
+					return children[i];
+			return null;
+		}
+
+		private Node getOrCreate(char c) {
+			Node n = get(c);
+			if (n == null) {
+				n = new Node();
+				int l = chars.length;
+				char[] newChars = Arrays.copyOf(chars, l + 1);
+				Node[] newChildren = Arrays.copyOf(children, l + 1);
+				newChars[l] = c;
+				newChildren[l] = n;
+				children = newChildren;
+				chars = newChars;
+			}
+			return n;
+		}
+	}
+
+	private final Node root = new Node();
+	private final Map<String, List<String>> extensionsByType = new HashMap<>();
+
+	private static char lower(char c) {
+		return c >= 'A' && c <= 'Z' ? (char)(c + ('a' - 'A')) : c;
+	}
+
+	/** Load the given content in the mime.types format, encoded in UTF-8, overriding existing extensions. */
+	public void load(InputStream input) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.isEmpty() || line.charAt(0) == '#')
+				continue;
+			String[] words = line.split("[ \t]+");
+			if (words.length > 1)
+				add(words[0], Arrays.copyOfRange(words, 1, words.length));
+		}
+	}
+
+	/** Register the given extensions (without leading dot) for the given type,
+	 * replacing any type previously registered for those extensions.
+	 */
+	public synchronized void add(String type, String... extensions) {
+		type = type.toLowerCase(Locale.US);
+		for (String ext : extensions) {
+			ext = ext.toLowerCase(Locale.US);
+			Node n = root;
+			for (int i = ext.length() - 1; i >= 0; --i)
+				n = n.getOrCreate(ext.charAt(i));
+			String previous = n.type;
+			if (type.equals(previous))
+				continue;
+			if (previous != null)
+				removeExtension(previous, ext);
+			n.type = type;
+			List<String> list = extensionsByType.get(type);
+			if (list == null) {
+				list = new ArrayList<>(4);
+				extensionsByType.put(type, list);
+			}
+			list.add(ext);
+		}
+	}
+
+	private void removeExtension(String type, String ext) {
+		List<String> list = extensionsByType.get(type);
+		if (list == null)
+			return;
+		list.remove(ext);
+		if (list.isEmpty())
+			extensionsByType.remove(type);
+	}
+
+	/** Return the type registered for the given extension (without leading dot, case insensitive), or null. */
+	public String getTypeByExtension(CharSequence extension) {
+		Node n = root;
+		for (int i = extension.length() - 1; i >= 0 && n != null; --i)
+			n = n.get(lower(extension.charAt(i)));
+		return n != null ? n.type : null;
+	}
+
+	/** Return the type of the given file name or path, based on its extension, or null if unknown. */
+	public String getTypeForFileName(CharSequence name) {
+		String type = null;
+		Node n = root;
+		for (int i = name.length() - 1; i > 0; --i) {
+			char c = name.charAt(i);
+			if (c == '/' || c == '\\')
+				break;
+			n = n.get(lower(c));
+			if (n == null)
+				break;
+			if (n.type != null && name.charAt(i - 1) == '.')
+				type = n.type;
+		}
+		return type;
+	}
+
+	/** Return the extensions registered for the given type, the preferred one first. */
+	public synchronized List<String> getExtensions(String type) {
+		List<String> list = extensionsByType.get(type.toLowerCase(Locale.US));
+		return list != null ? Collections.unmodifiableList(new ArrayList<>(list)) : Collections.emptyList();
+	}
+
+}
@@ -3,12 +3,11 @@ package net.lecousin.framework.network.mime;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import net.lecousin.framework.encoding.Base64Encoding;
 import net.lecousin.framework.encoding.EncodingException;
-import net.lecousin.framework.encoding.QuotedPrintable;
-import net.lecousin.framework.io.data.ByteArray;
-import net.lecousin.framework.memory.ByteArrayCache;
+import net.lecousin.framework.encoding.HexaDecimalEncoding;
 import net.lecousin.framework.text.ByteArrayStringIso8859;
 import net.lecousin.framework.text.CharArrayString;
 import net.lecousin.framework.text.CharArrayStringBuffer;
@@ -22,56 +21,214 @@ public final class MimeUtil {
 	
 	/** Decode a header content using RFC 2047, which specifies encoded word as follows:
 	 * encoded-word = "=?" charset "?" encoding "?" encoded-text "?=".
+	 * Double quotes are removed, and their content is kept as is.
+	 * Spaces between adjacent encoded words are ignored, and adjacent encoded words using the same charset
+	 * are decoded together, so a character may be split between 2 encoded words.
 	 */
 	public static String decodeRFC2047(String value) throws EncodingException, UnsupportedEncodingException {
+		int len = value.length();
 		int pos = 0;
-		while (pos < value.length()) {
-			int i = value.indexOf("=?", pos);
-			int i2 = value.indexOf('"', pos);
-			if (i2 >= 0 && (i < 0 || i > i2)) {
-				int j = value.indexOf('"', i2 + 1);
-				if (j > 0) {
-					value = value.substring(0, i2) + value.substring(i2 + 1, j) + value.substring(j + 1);
-					pos = j - 1;
-					continue;
-				}
-			}
-			if (i < 0) break;
-			int j = value.indexOf("?=", i + 2);
-			if (j < 0) break;
-			String decoded = decodeRFC2047Word(value.substring(i + 2, j));
-			value = value.substring(0, i) + decoded + value.substring(j + 2);
-			pos = i + decoded.length();
+		while (pos < len) {
+			char c = value.charAt(pos);
+			if (c == '"' || (c == '=' && pos + 1 < len && value.charAt(pos + 1) == '?'))
+				break;
+			pos++;
 		}
-		return value;
+		if (pos == len)
+			return value;
+		RFC2047Decoder decoder = new RFC2047Decoder(value);
+		decoder.out.append(value, 0, pos);
+		decoder.decode(pos);
+		return decoder.out.toString();
 	}
-
+	
 	/** Decode a word based on RFC 2047 specification. */
 	public static String decodeRFC2047Word(String encodedWord) throws EncodingException, UnsupportedEncodingException {
 		int i = encodedWord.indexOf('?');
 		if (i < 0) return encodedWord;
-		String charsetName = encodedWord.substring(0, i);
-		encodedWord = encodedWord.substring(i + 1);
-		i = encodedWord.indexOf('?');
-		if (i < 0) return encodedWord;
-		String encoding = encodedWord.substring(0, i);
-		encodedWord = encodedWord.substring(i + 1);
-		encoding = encoding.trim().toUpperCase();
-		if ("B".equals(encoding)) {
-			byte[] decoded = Base64Encoding.instance.decode(encodedWord.getBytes(StandardCharsets.US_ASCII));
-			return new String(decoded, charsetName);
-		} else if ("Q".equals(encoding)) {
-			QuotedPrintable.Decoder decoder = new QuotedPrintable.Decoder();
-			ByteArray.Writable input = new ByteArray.Writable(encodedWord.getBytes(StandardCharsets.US_ASCII), true);
-			ByteArray.Writable output = new ByteArray.Writable(ByteArrayCache.getInstance().get(input.remaining() + 1, true), true);
-			decoder.decode(input, output, true);
-			String decoded = new String(output.getArray(), 0, output.position(), charsetName);
-			input.free();
-			output.free();
-			return decoded;
-		} else {
-			throw new UnsupportedEncodingException("RFC 2047 encoding " + encoding);
+		int j = encodedWord.indexOf('?', i + 1);
+		if (j < 0) return encodedWord.substring(i + 1);
+		RFC2047Decoder decoder = new RFC2047Decoder(encodedWord);
+		decoder.decodeWord(0, i, i + 1, j, j + 1, encodedWord.length());
+		decoder.flush();
+		return decoder.out.toString();
+	}
+	
+	private static final BoundedCache<String, Charset> charsetCache = new BoundedCache<>(32);
+	
+	/** Return the charset with the given name, using a cache of charsets already resolved. */
+	private static Charset getCharset(String name) throws UnsupportedEncodingException {
+		Charset charset = charsetCache.get(name);
+		if (charset != null)
+			return charset;
+		try {
+			charset = Charset.forName(name);
+		} catch (IllegalArgumentException e) {
+			throw new UnsupportedEncodingException(name);
+		}
+		charsetCache.put(name, charset);
+		return charset;
+	}
+	
+	/** Single pass decoder, accumulating the bytes of adjacent encoded words using the same charset. */
+	private static final class RFC2047Decoder {
+		
+		private RFC2047Decoder(String value) {
+			this.value = value;
+			this.out = new StringBuilder(value.length());
+		}
+		
+		private String value;
+		private StringBuilder out;
+		private Charset charset = null;
+		private byte[] bytes = null;
+		private int nbBytes = 0;
+		// spaces following an encoded word, removed if followed by another encoded word
+		private int spacesStart = -1;
+		private int spacesEnd;
+		
+		private void decode(int pos) throws EncodingException, UnsupportedEncodingException {
+			int len = value.length();
+			while (pos < len) {
+				char c = value.charAt(pos);
+				if (c == '"') {
+					flush();
+					int j = value.indexOf('"', pos + 1);
+					if (j < 0) {
+						out.append(c);
+						pos++;
+					} else {
+						out.append(value, pos + 1, j);
+						pos = j + 1;
+					}
+				} else if (c == '=' && pos + 1 < len && value.charAt(pos + 1) == '?') {
+					pos = encodedWord(pos);
+				} else if (charset != null && (c == ' ' || c == '\t' || c == '\r' || c == '\n')) {
+					int i = pos + 1;
+					while (i < len && ((c = value.charAt(i)) == ' ' || c == '\t' || c == '\r' || c == '\n'))
+						i++;
+					if (i + 1 < len && value.charAt(i) == '=' && value.charAt(i + 1) == '?') {
+						spacesStart = pos;
+						spacesEnd = i;
+					} else {
+						flush();
+						out.append(value, pos, i);
+					}
+					pos = i;
+				} else {
+					flush();
+					out.append(c);
+					pos++;
+				}
+			}
+			flush();
+		}
+		
+		/** Decode the encoded word starting at the given position, and return the position after it. */
+		private int encodedWord(int pos) throws EncodingException, UnsupportedEncodingException {
+			int end = value.indexOf("?=", pos + 2);
+			if (end < 0) {
+				// not terminated: keep the remaining as is
+				flush();
+				out.append(value, pos, value.length());
+				return value.length();
+			}
+			int q1 = value.indexOf('?', pos + 2);
+			if (q1 == end) {
+				// no encoding: only the content is kept
+				flush();
+				out.append(value, pos + 2, end);
+				return end + 2;
+			}
+			int q2 = value.indexOf('?', q1 + 1);
+			if (q2 == end) {
+				// the encoded text may start with = in Q encoding
+				int e = q2 == q1 + 2 ? value.indexOf("?=", q2 + 1) : -1;
+				if (e < 0 || "BbQq".indexOf(value.charAt(q1 + 1)) < 0) {
+					flush();
+					out.append(value, q1 + 1, end);
+					return end + 2;
+				}
+				end = e;
+			}
+			// spaces between 2 encoded words are ignored
+			spacesStart = -1;
+			decodeWord(pos + 2, q1, q1 + 1, q2, q2 + 1, end);
+			return end + 2;
+		}
+		
+		private void decodeWord(int charsetStart, int charsetEnd, int encodingStart, int encodingEnd, int textStart, int textEnd)
+		throws EncodingException, UnsupportedEncodingException {
+			while (encodingStart < encodingEnd && value.charAt(encodingStart) <= ' ') encodingStart++;
+			while (encodingEnd > encodingStart && value.charAt(encodingEnd - 1) <= ' ') encodingEnd--;
+			char encoding = encodingEnd == encodingStart + 1 ? Character.toUpperCase(value.charAt(encodingStart)) : 0;
+			if (encoding != 'B' && encoding != 'Q')
+				throw new UnsupportedEncodingException("RFC 2047 encoding "
+					+ value.substring(encodingStart, encodingEnd).toUpperCase());
+			// RFC 2231 allows a language after the charset
+			int i = value.indexOf('*', charsetStart);
+			if (i >= 0 && i < charsetEnd)
+				charsetEnd = i;
+			Charset cs = getCharset(value.substring(charsetStart, charsetEnd));
+			if (!cs.equals(charset)) {
+				flush();
+				charset = cs;
+			}
+			if (encoding == 'B')
+				decodeBase64(textStart, textEnd);
+			else
+				decodeQ(textStart, textEnd);
+		}
+		
+		private void decodeBase64(int start, int end) throws EncodingException {
+			byte[] encoded = new byte[end - start];
+			for (int i = start; i < end; ++i)
+				encoded[i - start] = (byte)value.charAt(i);
+			byte[] decoded = Base64Encoding.instance.decode(encoded);
+			ensureCapacity(decoded.length);
+			System.arraycopy(decoded, 0, bytes, nbBytes, decoded.length);
+			nbBytes += decoded.length;
+		}
+		
+		private void decodeQ(int start, int end) throws EncodingException {
+			ensureCapacity(end - start);
+			for (int i = start; i < end; ++i) {
+				char c = value.charAt(i);
+				if (c == '=') {
+					if (i + 2 >= end)
+						throw new EncodingException("Unexpected end of quoted-printable encoded word");
+					bytes[nbBytes++] = (byte)((HexaDecimalEncoding.decodeChar(value.charAt(i + 1)) << 4)
+						| HexaDecimalEncoding.decodeChar(value.charAt(i + 2)));
+					i += 2;
+				} else if (c == '_') {
+					// RFC 2047 section 4.2: an underscore always represents a space
+					bytes[nbBytes++] = (byte)' ';
+				} else {
+					bytes[nbBytes++] = c < 128 ? (byte)c : (byte)'?';
+				}
+			}
+		}
+		
+		private void ensureCapacity(int size) {
+			if (bytes == null)
+				bytes = new byte[Math.max(size, 64)];
+			else if (nbBytes + size > bytes.length)
+				bytes = Arrays.copyOf(bytes, Math.max(nbBytes + size, bytes.length * 2));
+		}
+		
+		/** Decode pending bytes, and append pending spaces. */
+		private void flush() {
+			if (nbBytes > 0) {
+				out.append(new String(bytes, 0, nbBytes, charset));
+				nbBytes = 0;
+			}
+			charset = null;
+			if (spacesStart >= 0) {
+				out.append(value, spacesStart, spacesEnd);
+				spacesStart = -1;
+			}
 		}
+		
 	}
 	
 	/** Return true if the given byte is a valid token character according
@@ -104,7 +104,7 @@ public class BinaryEntity extends MimeEntity implements AutoCloseable, AsyncClos
 		}
 		SubIO.Readable.Seekable subIO = new SubIO.Readable.Seekable((IO.Readable.Seekable)content,
 			r.min, r.max - r.min + 1, "Range of " + content.getSourceDescription(), false);
-		BinaryEntity subEntity = new BinaryEntity(null, new MimeHeaders(getHeaders().getHeaders()));
+		BinaryEntity subEntity = new BinaryEntity(null, getHeaders().copy());
 		subEntity.setContent(subIO);
 		return new Triple<>(r, Long.valueOf(size), subEntity);
 	}
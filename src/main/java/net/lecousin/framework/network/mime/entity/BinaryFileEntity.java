@@ -84,7 +84,7 @@ public class BinaryFileEntity extends MimeEntity implements AutoCloseable, Async
 		}
 		SubIO.Readable.Seekable subIO = new SubIO.Readable.Seekable(new FileIO.ReadOnly(file, Task.getCurrentPriority()),
 			r.min, r.max - r.min + 1, "Range of " + file.getAbsolutePath(), true);
-		BinaryEntity subEntity = new BinaryEntity(null, new MimeHeaders(getHeaders().getHeaders()));
+		BinaryEntity subEntity = new BinaryEntity(null, getHeaders().copy());
 		subEntity.setContent(subIO);
 		return new Triple<>(r, Long.valueOf(size), subEntity);
 	}
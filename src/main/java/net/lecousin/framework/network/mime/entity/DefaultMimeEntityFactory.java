@@ -1,8 +1,12 @@
 package net.lecousin.framework.network.mime.entity;
 
+import java.lang.reflect.Constructor;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
+import net.lecousin.framework.network.mime.BoundedCache;
+import net.lecousin.framework.network.mime.MediaType;
 import net.lecousin.framework.network.mime.MimeException;
 import net.lecousin.framework.network.mime.header.MimeHeaders;
 import net.lecousin.framework.network.mime.header.ParameterizedHeaderValue;
@@ -16,25 +20,53 @@ public final class DefaultMimeEntityFactory implements MimeEntityFactory {
 		return instance;
 	}
 	
-	private Map<String, Map<String, Class<? extends MimeEntity>>> registry = new HashMap<>();
+	private Map<String, Map<String, MimeEntityFactory>> registry = new HashMap<>();
+	// factory resolved for each media type without parameters, cleared when a factory is registered
+	// it is filled while holding the lock on the registry, so a factory resolved before a registration cannot be put after it
+	private BoundedCache<MediaType, MimeEntityFactory> dispatch = new BoundedCache<>(64);
 	
 	private DefaultMimeEntityFactory() {
-		register(null, null, BinaryEntity.class);
-		register("text", null, TextEntity.class);
-		register(MultipartEntity.MAIN_CONTENT_TYPE, FormDataEntity.MULTIPART_SUB_TYPE, FormDataEntity.class);
-		register(MultipartEntity.MAIN_CONTENT_TYPE, null, MultipartEntity.class);
-		register("application", "x-www-form-urlencoded", FormUrlEncodedEntity.class);
+		register(null, null, BinaryEntity::new);
+		register("text", null, TextEntity::new);
+		register(MultipartEntity.MAIN_CONTENT_TYPE, FormDataEntity.MULTIPART_SUB_TYPE, FormDataEntity::new);
+		register(MultipartEntity.MAIN_CONTENT_TYPE, null, MultipartEntity::new);
+		register("application", "x-www-form-urlencoded", FormUrlEncodedEntity::new);
 	}
 	
-	/** Register a MimeEntity class for a given content type. */
+	/** Register a MimeEntity class for a given content type.
+	 * The class must have a public constructor with parameters (MimeEntity parent, MimeHeaders headers).
+	 * Registering a factory, for example a constructor reference, avoids the use of reflection.
+	 */
 	public void register(String mainType, String subType, Class<? extends MimeEntity> clazz) {
+		Constructor<? extends MimeEntity> ctor;
+		try {
+			ctor = clazz.getConstructor(MimeEntity.class, MimeHeaders.class);
+		} catch (NoSuchMethodException e) {
+			ctor = null;
+		}
+		Constructor<? extends MimeEntity> constructor = ctor;
+		register(mainType, subType, (parent, headers) -> {
+			if (constructor == null)
+				return null;
+			try {
+				return constructor.newInstance(parent, headers);
+			} catch (Exception e) {
+				return null;
+			}
+		});
+	}
+	
+	/** Register a factory for a given content type. */
+	public void register(String mainType, String subType, MimeEntityFactory factory) {
 		synchronized (registry) {
-			Map<String, Class<? extends MimeEntity>> subMap = registry.get(mainType);
+			String main = mainType != null ? mainType.toLowerCase(Locale.US) : null;
+			Map<String, MimeEntityFactory> subMap = registry.get(main);
 			if (subMap == null) {
 				subMap = new HashMap<>();
-				registry.put(mainType, subMap);
+				registry.put(main, subMap);
 			}
-			subMap.put(subType, clazz);
+			subMap.put(subType != null ? subType.toLowerCase(Locale.US) : null, factory);
+			dispatch.clear();
 		}
 	}
 	
@@ -44,31 +76,45 @@ public final class DefaultMimeEntityFactory implements MimeEntityFactory {
 		ParameterizedHeaderValue ct;
 		try { ct = headers.getContentType(); }
 		catch (MimeException e) { ct = null; }
-		String main = null;
-		String sub = null;
-		if (ct != null) {
-			String s = ct.getMainValue();
-			int i = s.indexOf('/');
-			if (i > 0) {
-				main = s.substring(0, i);
-				sub = s.substring(i + 1);
-			}
+		MediaType type = ct != null && ct.getMainValue() != null ? MediaType.parse(ct.getMainValue()) : null;
+		MimeEntityFactory factory;
+		if (type != null) {
+			factory = dispatch.get(type.getEssence());
+			if (factory == null)
+				factory = resolve(type);
+		} else {
+			factory = resolve(null, null);
 		}
-		Map<String, Class<? extends MimeEntity>> subMap = registry.get(main);
-		if (subMap == null)
-			subMap = registry.get(null);
-		if (subMap == null)
-			return new BinaryEntity(parent, headers);
-		Class<? extends MimeEntity> type = subMap.get(sub);
-		if (type == null)
-			type = subMap.get(null);
-		if (type == null)
+		if (factory == null)
 			return new BinaryEntity(parent, headers);
 		try {
-			return type.getConstructor(MimeEntity.class, MimeHeaders.class).newInstance(parent, headers);
+			return factory.create(parent, headers);
 		} catch (Exception e) {
 			return null;
 		}
 	}
 	
+	private MimeEntityFactory resolve(MediaType type) {
+		synchronized (registry) {
+			MimeEntityFactory factory = resolve(type.getType(), type.getSubType());
+			if (factory != null)
+				dispatch.put(type.getEssence(), factory);
+			return factory;
+		}
+	}
+	
+	private MimeEntityFactory resolve(String main, String sub) {
+		synchronized (registry) {
+			Map<String, MimeEntityFactory> subMap = registry.get(main);
+			if (subMap == null)
+				subMap = registry.get(null);
+			if (subMap == null)
+				return null;
+			MimeEntityFactory factory = subMap.get(sub);
+			if (factory == null)
+				factory = subMap.get(null);
+			return factory;
+		}
+	}
+	
 }
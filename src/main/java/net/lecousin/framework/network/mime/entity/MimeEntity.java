@@ -3,6 +3,7 @@ package net.lecousin.framework.network.mime.entity;
 import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.function.Predicate;
 
 import net.lecousin.framework.concurrent.async.AsyncSupplier;
 import net.lecousin.framework.concurrent.async.IAsync;
@@ -11,14 +12,13 @@ import net.lecousin.framework.concurrent.threads.Task.Priority;
 import net.lecousin.framework.concurrent.util.AsyncConsumer;
 import net.lecousin.framework.concurrent.util.AsyncConsumerOutput;
 import net.lecousin.framework.concurrent.util.AsyncProducer;
-import net.lecousin.framework.concurrent.util.LinkedAsyncProducer;
 import net.lecousin.framework.concurrent.util.PartialAsyncConsumer;
 import net.lecousin.framework.io.IO;
 import net.lecousin.framework.io.buffering.IOInMemoryOrFile;
-import net.lecousin.framework.io.data.ByteBufferAsBytes;
 import net.lecousin.framework.io.out2in.OutputToInput;
 import net.lecousin.framework.io.out2in.OutputToInputBuffers;
 import net.lecousin.framework.math.RangeLong;
+import net.lecousin.framework.memory.ByteArrayCache;
 import net.lecousin.framework.network.mime.MimeException;
 import net.lecousin.framework.network.mime.header.MimeHeaders;
 import net.lecousin.framework.network.mime.header.MimeHeadersContainer;
@@ -76,7 +76,7 @@ public abstract class MimeEntity implements MimeHeadersContainer<MimeEntity> {
 	/** Write the headers and body of this entity into an OutputToInput. */
 	public AsyncSupplier<IO.OutputToInput, IOException> writeEntity() {
 		AsyncSupplier<Pair<Long, AsyncProducer<ByteBuffer, IOException>>, IOException> body = createBodyProducer();
-		ByteBuffer headersBytes = headers.generateString(4096).asByteBuffer();
+		ByteBuffer headersBytes = headers.generateByteBuffer();
 		AsyncSupplier<IO.OutputToInput, IOException> result = new AsyncSupplier<>();
 		Priority prio = Task.getCurrentPriority();
 		body.onDone(pair -> {
@@ -87,10 +87,12 @@ public abstract class MimeEntity implements MimeHeadersContainer<MimeEntity> {
 			else
 				io = new OutputToInput(new IOInMemoryOrFile(
 					headersBytes.remaining() + 128 * 1024, prio, "MIME entity"), "MIME entity");
-			new LinkedAsyncProducer<>(
-				new AsyncProducer.SingleData<>(headersBytes),
-				pair.getValue2()
-			).toConsumer(io.createConsumer(), "Write MIME entity", prio);
+			// the headers are given read-only, so the buffer is given back to the cache once written
+			AsyncConsumer<ByteBuffer, IOException> consumer = io.createConsumer();
+			consumer.consume(headersBytes.asReadOnlyBuffer()).onDone(() -> {
+				ByteArrayCache.getInstance().free(headersBytes);
+				pair.getValue2().toConsumer(consumer, "Write MIME entity", prio);
+			}, consumer::error, cancel -> consumer.error(IO.error(cancel)));
 			result.unblockSuccess(io);
 		}, result);
 		return result;
@@ -110,21 +112,33 @@ public abstract class MimeEntity implements MimeHeadersContainer<MimeEntity> {
 
 	private abstract static class ParserTransfer {
 		
-		private ParserTransfer(MimeEntityFactory entityFactory) {
+		private ParserTransfer(MimeEntityFactory entityFactory, MimeEntity parent) {
 			this.entityFactory = entityFactory;
+			this.parent = parent;
 			headers = new MimeHeaders();
-			headersConsumer = headers.new HeadersConsumer();
+			headersConsumer = reusableHeadersConsumer = headers.new HeadersConsumer();
 		}
 		
 		protected MimeEntityFactory entityFactory;
+		protected MimeEntity parent;
 		protected MimeHeaders headers;
 		protected MimeHeaders.HeadersConsumer headersConsumer;
 		protected MimeEntity entity;
 		protected AsyncConsumer<ByteBuffer, IOException> bodyConsumer;
+		private MimeHeaders.HeadersConsumer reusableHeadersConsumer;
+		
+		/** Reset this instance so it can be reused to parse another entity, once the previous one has been entirely parsed. */
+		public void reset() {
+			headers = new MimeHeaders();
+			reusableHeadersConsumer.reset(headers);
+			headersConsumer = reusableHeadersConsumer;
+			entity = null;
+			bodyConsumer = null;
+		}
 
 		protected AsyncSupplier<Boolean, IOException> consumeData(ByteBuffer data) {
 			if (headersConsumer != null) {
-				AsyncSupplier<Boolean, MimeException> consume = headersConsumer.consume(ByteBufferAsBytes.create(data, false));
+				AsyncSupplier<Boolean, MimeException> consume = headersConsumer.consume(data);
 				// headers consumer is synchronized
 				/* if (consume.isDone()) { */
 				if (consume.hasError())
@@ -159,7 +173,7 @@ public abstract class MimeEntity implements MimeHeadersContainer<MimeEntity> {
 		
 		protected void endOfHeaders() throws IOException {
 			try {
-				entity = entityFactory.create(null, headers);
+				entity = entityFactory.create(parent, headers);
 			} catch (MimeException e) {
 				throw IO.error(e);
 			}
@@ -177,16 +191,47 @@ public abstract class MimeEntity implements MimeHeadersContainer<MimeEntity> {
 		
 		/** Constructor. */
 		public Parser(MimeEntityFactory entityFactory) {
-			super(entityFactory);
+			this(entityFactory, null);
+		}
+		
+		/** Constructor to parse a part of the given parent, which is given to the entity factory. */
+		public Parser(MimeEntityFactory entityFactory, MimeEntity parent) {
+			super(entityFactory, parent);
 		}
 		
 		private AsyncSupplier<MimeEntity, IOException> output = new AsyncSupplier<>();
+		private Predicate<MimeHeaders> filter;
+		private volatile boolean skipped = false;
 		
+		/** Return the parsed entity, available once the end has been consumed.<br/>
+		 * The output is successful with a null result if the headers have been rejected by the filter,
+		 * in which case {@link #isSkipped()} returns true.
+		 */
 		@Override
 		public AsyncSupplier<MimeEntity, IOException> getOutput() {
 			return output;
 		}
 		
+		/** Set a filter evaluated once the headers are parsed: if it rejects them, no entity is created,
+		 * the body is skipped without being decoded, {@link #isSkipped()} returns true, and the output
+		 * is successful with a null result instead of an entity.
+		 */
+		public void setFilter(Predicate<MimeHeaders> filter) {
+			this.filter = filter;
+		}
+		
+		/** Return true if the headers have been rejected by the filter, meaning the body is skipped. */
+		public boolean isSkipped() {
+			return skipped;
+		}
+		
+		@Override
+		public void reset() {
+			super.reset();
+			output = new AsyncSupplier<>();
+			skipped = false;
+		}
+		
 		@Override
 		public IAsync<IOException> consume(ByteBuffer data) {
 			return consumeData(data);
@@ -194,12 +239,22 @@ public abstract class MimeEntity implements MimeHeadersContainer<MimeEntity> {
 		
 		@Override
 		protected void endOfHeaders() throws IOException {
+			if (filter != null && !filter.test(headers)) {
+				skipped = true;
+				headers = null;
+				headersConsumer = null;
+				return;
+			}
 			super.endOfHeaders();
 			bodyConsumer = ContentDecoderFactory.createDecoder(bodyConsumer, entity.getHeaders());
 		}
 		
 		@Override
 		protected AsyncSupplier<Boolean, IOException> consumeBody(ByteBuffer data) {
+			if (skipped) {
+				data.position(data.limit());
+				return new AsyncSupplier<>(Boolean.FALSE, null);
+			}
 			AsyncSupplier<Boolean, IOException> result = new AsyncSupplier<>();
 			bodyConsumer.consume(data).onDone(() -> result.unblockSuccess(Boolean.FALSE), result);
 			return result;
@@ -208,6 +263,10 @@ public abstract class MimeEntity implements MimeHeadersContainer<MimeEntity> {
 		@Override
 		public IAsync<IOException> end() {
 			if (headersConsumer == null) {
+				if (skipped) {
+					output.unblockSuccess(null);
+					return output;
+				}
 				bodyConsumer.end().onDone(() -> output.unblockSuccess(entity), output);
 				return output;
 			}
@@ -229,11 +288,17 @@ public abstract class MimeEntity implements MimeHeadersContainer<MimeEntity> {
 		
 		/** Constructor. */
 		public Transfer(MimeEntityFactory entityFactory) {
-			super(entityFactory);
+			super(entityFactory, null);
 		}
 		
 		private PartialAsyncConsumer<ByteBuffer, IOException> transfer;
 		
+		@Override
+		public void reset() {
+			super.reset();
+			transfer = null;
+		}
+		
 		@Override
 		public AsyncSupplier<Boolean, IOException> consume(ByteBuffer data) {
 			return consumeData(data);
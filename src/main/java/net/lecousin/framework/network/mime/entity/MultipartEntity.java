@@ -4,10 +4,12 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.function.Predicate;
 
 import net.lecousin.framework.concurrent.Executable;
 import net.lecousin.framework.concurrent.async.Async;
@@ -54,6 +56,8 @@ public class MultipartEntity extends MimeEntity {
 			throw new MimeException("No boundary specified in Content-Type header");
 		this.boundary = s.getBytes(StandardCharsets.US_ASCII);
 		this.partFactory = parent instanceof MultipartEntity ? ((MultipartEntity)parent).partFactory : DefaultMimeEntityFactory.getInstance();
+		if (parent instanceof MultipartEntity)
+			this.maxPartsDecoding = ((MultipartEntity)parent).maxPartsDecoding;
 	}
 	
 	private static int counter = 0;
@@ -62,6 +66,9 @@ public class MultipartEntity extends MimeEntity {
 	protected byte[] boundary;
 	protected LinkedList<MimeEntity> parts = new LinkedList<>();
 	protected MimeEntityFactory partFactory = null;
+	private BoundaryPattern boundaryPattern = null;
+	private int maxPartsDecoding = 0;
+	private Predicate<MimeHeaders> partFilter = null;
 	
 	public MimeEntityFactory getPartFactory() {
 		return partFactory;
@@ -70,6 +77,33 @@ public class MultipartEntity extends MimeEntity {
 	public void setPartFactory(MimeEntityFactory partFactory) {
 		this.partFactory = partFactory;
 	}
+	
+	public int getConcurrentDecoding() {
+		return maxPartsDecoding;
+	}
+	
+	/** Set the maximum number of parts decoded concurrently when parsing, 0 (the default) to decode each part
+	 * before searching the next boundary.<br/>
+	 * When enabled, the body of each part is queued and decoded in CPU tasks while the next parts are parsed,
+	 * which uses more cores for messages with several large encoded parts. The parts are added in their order,
+	 * once all of them have been decoded. This does not apply to a consumer created with a PartHandler.
+	 * A part which is itself a multi-part uses the same maximum.
+	 */
+	public void setConcurrentDecoding(int maxPartsDecoding) {
+		this.maxPartsDecoding = maxPartsDecoding;
+	}
+	
+	public Predicate<MimeHeaders> getPartFilter() {
+		return partFilter;
+	}
+	
+	/** Set a filter evaluated on the headers of each part when parsing, null to accept all parts.<br/>
+	 * The body of a rejected part is skipped while searching the next boundary: no entity is created
+	 * and its content is neither decoded nor copied, so the part is not added and is not given to a PartHandler.
+	 */
+	public void setPartFilter(Predicate<MimeHeaders> partFilter) {
+		this.partFilter = partFilter;
+	}
 
 	protected static byte[] generateBoundary() {
 		int count;
@@ -150,6 +184,7 @@ public class MultipartEntity extends MimeEntity {
 		private MimeEntity currentEntity;
 		private boolean headersSent = false;
 		private AsyncProducer<ByteBuffer, IOException> bodyProducer;
+		private ByteBuffer headersBuffer;
 		private byte[] bound;
 		
 		/** Constructor. */
@@ -164,6 +199,11 @@ public class MultipartEntity extends MimeEntity {
 		
 		@Override
 		public AsyncSupplier<ByteBuffer, IOException> produce() {
+			if (headersBuffer != null) {
+				// the headers have been given read-only and are consumed, the buffer can go back to the cache
+				ByteArrayCache.getInstance().free(headersBuffer);
+				headersBuffer = null;
+			}
 			if (currentEntity == null && !itPart.hasNext()) {
 				if (boundSent)
 					return new AsyncSupplier<>(null, null);
@@ -182,7 +222,8 @@ public class MultipartEntity extends MimeEntity {
 			}
 			if (!headersSent) {
 				headersSent = true;
-				return new AsyncSupplier<>(currentEntity.getHeaders().generateString(4096).asByteBuffer(), null);
+				headersBuffer = currentEntity.getHeaders().generateByteBuffer();
+				return new AsyncSupplier<>(headersBuffer.asReadOnlyBuffer(), null);
 			}
 			if (bodyProducer == null) {
 				AsyncSupplier<Pair<Long, AsyncProducer<ByteBuffer, IOException>>, IOException> body =
@@ -229,19 +270,332 @@ public class MultipartEntity extends MimeEntity {
 		return new Parser(partFactory);
 	}
 	
+	/** Handler receiving the parts while they are parsed, instead of keeping them in the entity. */
+	public interface PartHandler {
+		
+		/** Called when the headers of a part have been parsed, it returns the consumer of the part's body,
+		 * or null to skip it. The body is decoded the same way as for the parts kept in the entity.
+		 */
+		AsyncConsumer<ByteBuffer, IOException> onPartHeaders(MimeHeaders headers) throws IOException;
+		
+		/** Called once the body of a part has been entirely given to its consumer. */
+		void onPartEnd(MimeHeaders headers);
+		
+	}
+	
+	/** Create a consumer parsing the body of this entity, giving each part to the handler.
+	 * The parts are not added to this entity, and no reference is kept on a part once its body is parsed,
+	 * so a large number of parts can be parsed with a constant memory.
+	 */
+	public AsyncConsumer<ByteBuffer, IOException> createStreamingConsumer(PartHandler handler) {
+		return new Parser((parent, headers) -> {
+			AsyncConsumer<ByteBuffer, IOException> consumer;
+			try {
+				consumer = handler.onPartHeaders(headers);
+			} catch (IOException e) {
+				throw new MimeException("Error handling part headers", e);
+			}
+			return new StreamedPart(headers, consumer);
+		}, handler);
+	}
+	
+	/** Queue the body of a part, and decode it in CPU tasks while the multi-part parser continues. */
+	private static final class PartDecoder implements AsyncConsumer<ByteBuffer, IOException> {
+		
+		private static final int MAX_QUEUED_BUFFERS = 8;
+		
+		private PartDecoder(MimeEntity.Parser parser) {
+			this.parser = parser;
+		}
+		
+		private MimeEntity.Parser parser;
+		private LinkedList<ByteBuffer> queue = new LinkedList<>();
+		private boolean end = false;
+		private boolean decoding = false;
+		private Async<IOException> queueAvailable;
+		private IOException error;
+		
+		@Override
+		public IAsync<IOException> consume(ByteBuffer data) {
+			if (parser.isSkipped()) {
+				data.position(data.limit());
+				return new Async<>(true);
+			}
+			if (data.isReadOnly()) {
+				// the data is shared with the multi-part parser, we need a copy
+				int len = data.remaining();
+				byte[] b = ByteArrayCache.getInstance().get(len, true);
+				data.get(b, 0, len);
+				data = ByteBuffer.wrap(b, 0, len);
+			}
+			IAsync<IOException> result;
+			boolean start;
+			synchronized (this) {
+				if (error != null) {
+					ByteArrayCache.getInstance().free(data);
+					return new Async<>(error);
+				}
+				queue.add(data);
+				start = !decoding;
+				decoding = true;
+				if (queue.size() >= MAX_QUEUED_BUFFERS) {
+					queueAvailable = new Async<>();
+					result = queueAvailable;
+				} else {
+					result = new Async<>(true);
+				}
+			}
+			if (start)
+				Task.cpu("Decode multi-part entity", new Executable.FromRunnable(this::decode)).start();
+			return result;
+		}
+		
+		@Override
+		public IAsync<IOException> end() {
+			boolean start;
+			synchronized (this) {
+				end = true;
+				start = !decoding;
+				decoding = true;
+			}
+			if (start)
+				Task.cpu("Decode multi-part entity", new Executable.FromRunnable(this::decode)).start();
+			return parser.getOutput();
+		}
+		
+		@Override
+		public void error(IOException error) {
+			Async<IOException> available;
+			synchronized (this) {
+				if (this.error != null)
+					return;
+				this.error = error;
+				for (ByteBuffer b : queue)
+					ByteArrayCache.getInstance().free(b);
+				queue.clear();
+				available = queueAvailable;
+				queueAvailable = null;
+			}
+			parser.error(error);
+			if (available != null)
+				available.error(error);
+		}
+		
+		private void decode() {
+			do {
+				ByteBuffer data;
+				Async<IOException> available = null;
+				synchronized (this) {
+					if (error != null)
+						return;
+					data = queue.poll();
+					if (data == null) {
+						decoding = false;
+						if (!end)
+							return;
+					}
+					if (queueAvailable != null && queue.size() < MAX_QUEUED_BUFFERS / 2) {
+						available = queueAvailable;
+						queueAvailable = null;
+					}
+				}
+				if (available != null)
+					available.unblock();
+				if (data == null) {
+					parser.end();
+					return;
+				}
+				IAsync<IOException> consume = parser.consume(data);
+				if (!consume.isDone()) {
+					consume.onDone(() -> {
+						if (consume.isSuccessful())
+							Task.cpu("Decode multi-part entity", new Executable.FromRunnable(this::decode)).start();
+						else
+							error(consume.hasError() ? consume.getError() : new IOException("Decoding cancelled"));
+					});
+					return;
+				}
+				if (!consume.isSuccessful()) {
+					error(consume.hasError() ? consume.getError() : new IOException("Decoding cancelled"));
+					return;
+				}
+			} while (true);
+		}
+		
+	}
+	
+	/** Part whose body is given to a PartHandler, it cannot produce its body. */
+	private static final class StreamedPart extends MimeEntity {
+		
+		private StreamedPart(MimeHeaders headers, AsyncConsumer<ByteBuffer, IOException> consumer) {
+			super(null, headers);
+			this.consumer = consumer;
+		}
+		
+		private AsyncConsumer<ByteBuffer, IOException> consumer;
+		
+		@Override
+		public AsyncSupplier<Pair<Long, AsyncProducer<ByteBuffer, IOException>>, IOException> createBodyProducer() {
+			return new AsyncSupplier<>(null, new IOException("The body of this part has been given to a part handler"));
+		}
+		
+		@Override
+		public boolean canProduceBodyRange() {
+			return false;
+		}
+		
+		@Override
+		public Triple<RangeLong, Long, BinaryEntity> createBodyRange(RangeLong range) {
+			return null;
+		}
+		
+		@Override
+		public AsyncConsumer<ByteBuffer, IOException> createConsumer(Long size) {
+			if (consumer != null)
+				return consumer;
+			// skip the body
+			return new AsyncConsumer<ByteBuffer, IOException>() {
+				@Override
+				public IAsync<IOException> consume(ByteBuffer data) {
+					ByteArrayCache.getInstance().free(data);
+					return new Async<>(true);
+				}
+				
+				@Override
+				public IAsync<IOException> end() {
+					return new Async<>(true);
+				}
+				
+				@Override
+				public void error(IOException error) {
+					// nothing to do
+				}
+			};
+		}
+		
+	}
+	
 	private static final byte[] CRLF = new byte[] { '\r', '\n' };
 	private static final byte[] SEP = new byte[] { '-', '-' };
 	
+	private BoundaryPattern getBoundaryPattern() {
+		BoundaryPattern p = boundaryPattern;
+		if (p == null || p.boundary != boundary)
+			boundaryPattern = p = new BoundaryPattern(boundary);
+		return p;
+	}
+	
+	/** Search of \r\n--boundary using the Boyer-Moore-Horspool algorithm. */
+	private static final class BoundaryPattern {
+		
+		private BoundaryPattern(byte[] boundary) {
+			this.boundary = boundary;
+			pattern = new byte[4 + boundary.length];
+			pattern[0] = '\r';
+			pattern[1] = '\n';
+			pattern[2] = '-';
+			pattern[3] = '-';
+			System.arraycopy(boundary, 0, pattern, 4, boundary.length);
+			int m = pattern.length;
+			Arrays.fill(skip, m);
+			for (int i = 0; i < m - 1; ++i)
+				skip[pattern[i] & 0xFF] = m - 1 - i;
+		}
+		
+		private final byte[] boundary;
+		private final byte[] pattern;
+		private final int[] skip = new int[256];
+		
+		/** Return the index of the first occurrence of the pattern between start and end, or -1. */
+		private int indexOf(ByteBuffer buffer, int start, int end) {
+			if (buffer.hasArray()) {
+				int offset = buffer.arrayOffset();
+				int i = indexOf(buffer.array(), start + offset, end + offset);
+				return i < 0 ? -1 : i - offset;
+			}
+			int m = pattern.length;
+			byte last = pattern[m - 1];
+			int i = start + m - 1;
+			while (i < end) {
+				byte b = buffer.get(i);
+				if (b == last) {
+					int j = m - 2;
+					int k = i - 1;
+					while (j >= 0 && buffer.get(k) == pattern[j]) {
+						j--;
+						k--;
+					}
+					if (j < 0)
+						return k + 1;
+				}
+				i += skip[b & 0xFF];
+			}
+			return -1;
+		}
+		
+		private int indexOf(byte[] array, int start, int end) {
+			byte[] pat = pattern;
+			int m = pat.length;
+			byte last = pat[m - 1];
+			int i = start + m - 1;
+			while (i < end) {
+				byte b = array[i];
+				if (b == last) {
+					int j = m - 2;
+					int k = i - 1;
+					while (j >= 0 && array[k] == pat[j]) {
+						j--;
+						k--;
+					}
+					if (j < 0)
+						return k + 1;
+				}
+				i += skip[b & 0xFF];
+			}
+			return -1;
+		}
+		
+		/** Return the length of the longest end of the given range which is the beginning of the pattern.
+		 * As \r appears only at the beginning of the pattern, a partial match can only start with it.
+		 */
+		private int partialMatch(ByteBuffer buffer, int start, int end) {
+			for (int j = Math.max(start, end - pattern.length + 1); j < end; ++j) {
+				if (buffer.get(j) != '\r')
+					continue;
+				int len = end - j;
+				int k = 1;
+				while (k < len && buffer.get(j + k) == pattern[k])
+					k++;
+				if (k == len)
+					return len;
+			}
+			return 0;
+		}
+		
+	}
+	
 	/** Parser for multi-part content. */
 	public class Parser implements AsyncConsumer<ByteBuffer, IOException> {
 		
 		/** Constructor. */
 		public Parser(MimeEntityFactory entityFactory) {
+			this(entityFactory, null);
+		}
+		
+		private Parser(MimeEntityFactory entityFactory, PartHandler partHandler) {
 			if (entityFactory == null) throw new IllegalArgumentException("entityFactory must not be null");
 			this.entityFactory = entityFactory;
+			this.partHandler = partHandler;
+			this.maxPartsDecoding = partHandler == null ? MultipartEntity.this.maxPartsDecoding : 0;
+			this.partFilter = MultipartEntity.this.partFilter;
 		}
 		
 		private MimeEntityFactory entityFactory;
+		private PartHandler partHandler;
+		private int maxPartsDecoding;
+		private Predicate<MimeHeaders> partFilter;
+		private AsyncConsumer<ByteBuffer, IOException> partConsumer;
+		private LinkedList<PartDecoder> decoders = new LinkedList<>();
 		private boolean firstBoundary = true;
 		private int boundaryPos = 2; // first boundary may start without \r\n
 		private boolean isFinalBoundary = false;
@@ -263,8 +617,7 @@ public class MultipartEntity extends MimeEntity {
 		public IAsync<IOException> end() {
 			if (!eof) {
 				EOFException error = new EOFException("Unexpected end in multi-part before final boundary");
-				if (entityParser != null)
-					entityParser.error(error);
+				error(error);
 				return new Async<>(error);
 			}
 			return new Async<>(true);
@@ -272,8 +625,10 @@ public class MultipartEntity extends MimeEntity {
 
 		@Override
 		public void error(IOException error) {
-			if (entityParser != null)
-				entityParser.error(error);
+			if (partConsumer != null)
+				partConsumer.error(error);
+			for (PartDecoder decoder : decoders)
+				decoder.error(error);
 		}
 		
 		private void consumeData(ByteBuffer data, Async<IOException> onDone) {
@@ -298,6 +653,8 @@ public class MultipartEntity extends MimeEntity {
 					boundaryFound(data, onDone, start, found.booleanValue());
 					return;
 				}
+				if (entityParser.isSkipped())
+					continue; // part rejected by the filter: only search the next boundary
 				LinkedList<ByteBuffer> buffers = new LinkedList<>();
 				if (boundPos > 0 && boundaryPos <= boundPos)
 					addMissedBuffers(boundPos, wasFinal, buffers);
@@ -309,7 +666,7 @@ public class MultipartEntity extends MimeEntity {
 						subBuffer.limit(end);
 						buffers.add(subBuffer.asReadOnlyBuffer());
 					}
-					IAsync<IOException> push = entityParser.push(buffers);
+					IAsync<IOException> push = partConsumer.push(buffers);
 					push.onDone(onDone);
 					return;
 				}
@@ -325,7 +682,7 @@ public class MultipartEntity extends MimeEntity {
 						buffers.add(ByteBuffer.wrap(b));
 					}
 				}
-				IAsync<IOException> push = entityParser.push(buffers);
+				IAsync<IOException> push = partConsumer.push(buffers);
 				if (push.isSuccessful()) continue;
 				push.onDone(() -> consumeData(data, onDone), onDone);
 				return;
@@ -352,21 +709,27 @@ public class MultipartEntity extends MimeEntity {
 				return false;
 			}
 			firstBoundary = false;
-			entityParser = new MimeEntity.Parser(entityFactory);
+			newPart();
 			return true;
 		}
 		
+		private void newPart() {
+			entityParser = new MimeEntity.Parser(entityFactory, MultipartEntity.this);
+			entityParser.setFilter(partFilter);
+			partConsumer = maxPartsDecoding > 0 ? new PartDecoder(entityParser) : entityParser;
+		}
+		
 		private void boundaryFound(ByteBuffer data, Async<IOException> onDone, int start, boolean isLast) {
 			int end = data.position() - (4 + boundary.length + 2);
 			if (isLast)
 				end -= 2;
-			if (end - start > 0) {
+			if (end - start > 0 && !entityParser.isSkipped()) {
 				if (!data.hasRemaining()) {
 					// end of data, we can give it directly
 					ByteBuffer copy = data.duplicate();
 					copy.position(start);
 					copy.limit(end);
-					entityParser.consume(copy.asReadOnlyBuffer()).onDone(() -> endOfBody(isLast, data, onDone), onDone);
+					partConsumer.consume(copy.asReadOnlyBuffer()).onDone(() -> endOfBody(isLast, data, onDone), onDone);
 					return;
 				}
 				// we need a sub-buffer
@@ -381,15 +744,25 @@ public class MultipartEntity extends MimeEntity {
 					subBuffer = ByteBuffer.wrap(b);
 					data.position(p);
 				}
-				entityParser.consume(subBuffer).onDone(() -> endOfBody(isLast, data, onDone), onDone);
+				partConsumer.consume(subBuffer).onDone(() -> endOfBody(isLast, data, onDone), onDone);
 				return;
 			}
 			endOfBody(isLast, data, onDone);
 		}
 		
 		private void endOfBody(boolean isLast, ByteBuffer data, Async<IOException> onDone) {
+			if (maxPartsDecoding > 0) {
+				endOfDecodingBody(isLast, data, onDone);
+				return;
+			}
 			entityParser.end().onDone(() -> {
-				parts.add(entityParser.getOutput().getResult());
+				MimeEntity part = entityParser.getOutput().getResult();
+				// part is null if rejected by the filter
+				if (part != null && partHandler != null) {
+					partHandler.onPartEnd(part.getHeaders());
+				} else if (part != null) {
+					parts.add(part);
+				}
 				if (isLast) {
 					// end of multi-part
 					eof = true;
@@ -397,7 +770,8 @@ public class MultipartEntity extends MimeEntity {
 					onDone.unblock();
 					return;
 				}
-				entityParser = new MimeEntity.Parser(entityFactory);
+				// the same parser is used for all parts
+				entityParser.reset();
 				if (!data.hasRemaining())
 					onDone.unblock();
 				else
@@ -405,18 +779,74 @@ public class MultipartEntity extends MimeEntity {
 			}, onDone);
 		}
 		
+		private void endOfDecodingBody(boolean isLast, ByteBuffer data, Async<IOException> onDone) {
+			PartDecoder decoder = (PartDecoder)partConsumer;
+			decoder.end();
+			decoders.add(decoder);
+			if (isLast) {
+				// end of multi-part, once all parts are decoded
+				eof = true;
+				data.position(data.position() + data.remaining()); // skip any remaining data
+				waitDecoders(0, () -> {
+					for (PartDecoder d : decoders) {
+						MimeEntity part = d.parser.getOutput().getResult();
+						if (part != null)
+							parts.add(part);
+					}
+					decoders.clear();
+					onDone.unblock();
+				}, onDone);
+				return;
+			}
+			// wait for a free slot before to start the next part
+			waitDecoders(maxPartsDecoding - 1, () -> {
+				newPart();
+				if (!data.hasRemaining())
+					onDone.unblock();
+				else
+					Task.cpu("Parse multi-part entity", new Executable.FromRunnable(() -> consumeData(data, onDone))).start();
+			}, onDone);
+		}
+		
+		/** Call the continuation once at most the given number of parts are still being decoded. */
+		private void waitDecoders(int max, Runnable continuation, Async<IOException> onDone) {
+			int inProgress = 0;
+			AsyncSupplier<MimeEntity, IOException> oldest = null;
+			for (PartDecoder decoder : decoders) {
+				AsyncSupplier<MimeEntity, IOException> output = decoder.parser.getOutput();
+				if (!output.isDone()) {
+					if (oldest == null)
+						oldest = output;
+					inProgress++;
+				} else if (!output.isSuccessful()) {
+					output.onDone(onDone);
+					return;
+				}
+			}
+			if (inProgress <= max)
+				continuation.run();
+			else
+				oldest.onDone(() -> waitDecoders(max, continuation, onDone));
+		}
+		
 		/** return null if no boundary, true for final, false for normal. */
 		@SuppressWarnings("java:S3776") // complexity
 		private Boolean searchBoundary(ByteBuffer buffer) {
 			// a boundary is \r\n--<boundary>[--]\r\n
 			while (buffer.hasRemaining()) {
 				if (boundaryPos == 0) {
-					do {
-						if (buffer.get() == '\r') {
-							boundaryPos = 1;
-							break;
-						}
-					} while (buffer.hasRemaining());
+					// search the complete \r\n--boundary, or the beginning of it at the end of the buffer
+					BoundaryPattern p = getBoundaryPattern();
+					int start = buffer.position();
+					int end = buffer.limit();
+					int i = p.indexOf(buffer, start, end);
+					if (i >= 0) {
+						buffer.position(i + p.pattern.length);
+						boundaryPos = p.pattern.length;
+					} else {
+						boundaryPos = p.partialMatch(buffer, start, end);
+						buffer.position(end);
+					}
 					continue;
 				}
 				if (boundaryPos == 1) {
@@ -490,6 +920,8 @@ public class MultipartEntity extends MimeEntity {
 						boundaryPos = 0;
 						if (buffer.get() == '\n')
 							return Boolean.FALSE; // normal found !
+						// it may be the \r starting the next boundary
+						buffer.position(buffer.position() - 1);
 						return null;
 					}
 					break;
@@ -506,6 +938,8 @@ public class MultipartEntity extends MimeEntity {
 					boundaryPos = 0;
 					if (buffer.get() == '\n')
 						return Boolean.TRUE; // final found !
+					// it may be the \r starting the next boundary
+					buffer.position(buffer.position() - 1);
 					return null;
 				default: break; // not possible
 				}
@@ -0,0 +1,319 @@
+package net.lecousin.framework.network.mime.entity;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import net.lecousin.framework.concurrent.async.Async;
+import net.lecousin.framework.concurrent.async.AsyncSupplier;
+import net.lecousin.framework.concurrent.async.IAsync;
+import net.lecousin.framework.concurrent.util.AsyncConsumer;
+import net.lecousin.framework.concurrent.util.AsyncProducer;
+import net.lecousin.framework.memory.ByteArrayCache;
+import net.lecousin.framework.network.mime.header.MimeHeaders;
+
+/**
+ * Pull the parts of a multipart body one after the other.
+ * <p>
+ * The body of the multipart is given to the consumer returned by {@link #getConsumer()}, which can be used
+ * like any other consumer, for example with a MIME transfer. Each call to {@link #next()} gives the headers of
+ * the next part, with a producer for its decoded body.<br/>
+ * The consumer does not complete the consumption of its data until the caller takes it, so the body of the
+ * multipart is read only as fast as the parts are processed: a buffer given by the body producer remains
+ * valid until the next call to its produce method, and the part is entirely parsed only once the producer
+ * returned null. If {@link #next()} is called before the body of the current part has been entirely read,
+ * the remaining of this body is discarded.
+ * </p>
+ */
+public class MultipartIterator {
+	
+	/** Constructor. */
+	public MultipartIterator(MultipartEntity entity) {
+		parser = entity.createStreamingConsumer(new MultipartEntity.PartHandler() {
+			@Override
+			public AsyncConsumer<ByteBuffer, IOException> onPartHeaders(MimeHeaders headers) {
+				return newPart(headers);
+			}
+			
+			@Override
+			public void onPartEnd(MimeHeaders headers) {
+				// the end is signaled by the body producer
+			}
+		});
+	}
+	
+	/** A part with its headers and a producer of its body. */
+	public static final class Part {
+		
+		private Part(MimeHeaders headers, PartBody body) {
+			this.headers = headers;
+			this.body = body;
+		}
+		
+		private MimeHeaders headers;
+		private PartBody body;
+		
+		public MimeHeaders getHeaders() {
+			return headers;
+		}
+		
+		/** Return the producer of the decoded body, which returns null at the end of the body. */
+		public AsyncProducer<ByteBuffer, IOException> getBody() {
+			return body;
+		}
+		
+	}
+	
+	private AsyncConsumer<ByteBuffer, IOException> parser;
+	private Part ready;
+	private Part current;
+	private AsyncSupplier<Part, IOException> waiting;
+	private boolean finished = false;
+	private IOException error;
+	
+	/** Return the consumer to give the body of the multipart to. */
+	public AsyncConsumer<ByteBuffer, IOException> getConsumer() {
+		return new AsyncConsumer<ByteBuffer, IOException>() {
+			@Override
+			public IAsync<IOException> consume(ByteBuffer data) {
+				return parser.consume(data);
+			}
+			
+			@Override
+			public IAsync<IOException> end() {
+				Async<IOException> result = new Async<>();
+				parser.end().onDone(result);
+				result.onDone(() -> {
+					if (result.hasError())
+						failed(result.getError());
+					else if (result.isCancelled())
+						failed(new IOException("Multipart parsing cancelled", result.getCancelEvent()));
+					else
+						ended();
+				});
+				return result;
+			}
+			
+			@Override
+			public void error(IOException error) {
+				parser.error(error);
+				failed(error);
+			}
+		};
+	}
+	
+	/** Return the next part, or null if there is no more part. */
+	public AsyncSupplier<Part, IOException> next() {
+		Part toDiscard;
+		AsyncSupplier<Part, IOException> result;
+		synchronized (this) {
+			toDiscard = current;
+			current = null;
+			if (ready != null) {
+				current = ready;
+				ready = null;
+				result = new AsyncSupplier<>(current, null);
+			} else if (error != null) {
+				result = new AsyncSupplier<>(null, error);
+			} else if (finished) {
+				result = new AsyncSupplier<>(null, null);
+			} else {
+				if (waiting != null)
+					throw new IllegalStateException("next called while waiting for the previous part");
+				waiting = new AsyncSupplier<>();
+				result = waiting;
+			}
+		}
+		if (toDiscard != null)
+			toDiscard.body.discard();
+		return result;
+	}
+	
+	private PartBody newPart(MimeHeaders headers) {
+		PartBody body = new PartBody();
+		Part part = new Part(headers, body);
+		AsyncSupplier<Part, IOException> w;
+		synchronized (this) {
+			w = waiting;
+			waiting = null;
+			if (w != null)
+				current = part;
+			else
+				ready = part;
+		}
+		if (w != null)
+			w.unblockSuccess(part);
+		return body;
+	}
+	
+	private void ended() {
+		AsyncSupplier<Part, IOException> w;
+		synchronized (this) {
+			finished = true;
+			w = waiting;
+			waiting = null;
+		}
+		if (w != null)
+			w.unblockSuccess(null);
+	}
+	
+	private void failed(IOException e) {
+		AsyncSupplier<Part, IOException> w;
+		Part c;
+		synchronized (this) {
+			if (error != null)
+				return;
+			error = e;
+			w = waiting;
+			waiting = null;
+			c = current != null ? current : ready;
+		}
+		if (c != null)
+			c.body.error(e);
+		if (w != null)
+			w.error(e);
+	}
+	
+	/** Hand over the buffers of a part's body, from the multipart parser to the caller, one at a time. */
+	private static final class PartBody implements AsyncConsumer<ByteBuffer, IOException>, AsyncProducer<ByteBuffer, IOException> {
+		
+		private ByteBuffer pending;
+		private Async<IOException> pendingDone;
+		private Async<IOException> taken;
+		private Async<IOException> endDone;
+		private AsyncSupplier<ByteBuffer, IOException> waiting;
+		private boolean ended = false;
+		private boolean discarded = false;
+		private IOException error;
+		
+		@Override
+		public IAsync<IOException> consume(ByteBuffer data) {
+			Async<IOException> done = new Async<>();
+			AsyncSupplier<ByteBuffer, IOException> w;
+			synchronized (this) {
+				if (discarded || error != null) {
+					ByteArrayCache.getInstance().free(data);
+					return new Async<>(true);
+				}
+				w = waiting;
+				waiting = null;
+				if (w != null) {
+					taken = done;
+				} else {
+					pending = data;
+					pendingDone = done;
+				}
+			}
+			if (w != null)
+				w.unblockSuccess(data);
+			return done;
+		}
+		
+		@Override
+		public IAsync<IOException> end() {
+			AsyncSupplier<ByteBuffer, IOException> w;
+			synchronized (this) {
+				if (discarded || error != null)
+					return new Async<>(true);
+				ended = true;
+				w = waiting;
+				waiting = null;
+				if (w == null) {
+					endDone = new Async<>();
+					return endDone;
+				}
+			}
+			w.unblockSuccess(null);
+			return new Async<>(true);
+		}
+		
+		@Override
+		public void error(IOException error) {
+			AsyncSupplier<ByteBuffer, IOException> w;
+			synchronized (this) {
+				if (this.error != null)
+					return;
+				this.error = error;
+				w = waiting;
+				waiting = null;
+			}
+			releaseAll();
+			if (w != null)
+				w.error(error);
+		}
+		
+		@Override
+		public AsyncSupplier<ByteBuffer, IOException> produce() {
+			Async<IOException> previous;
+			Async<IOException> end = null;
+			AsyncSupplier<ByteBuffer, IOException> result;
+			synchronized (this) {
+				previous = taken;
+				taken = null;
+				if (error != null) {
+					result = new AsyncSupplier<>(null, error);
+				} else if (pending != null) {
+					result = new AsyncSupplier<>(pending, null);
+					taken = pendingDone;
+					pending = null;
+					pendingDone = null;
+				} else if (ended || discarded) {
+					result = new AsyncSupplier<>(null, null);
+					end = endDone;
+					endDone = null;
+				} else {
+					if (waiting != null)
+						throw new IllegalStateException("produce called while waiting for the previous data");
+					waiting = new AsyncSupplier<>();
+					result = waiting;
+				}
+			}
+			// the previous buffer is not used anymore by the caller, the parser can continue
+			if (previous != null)
+				previous.unblock();
+			if (end != null)
+				end.unblock();
+			return result;
+		}
+		
+		private void discard() {
+			AsyncSupplier<ByteBuffer, IOException> w;
+			synchronized (this) {
+				if (discarded)
+					return;
+				discarded = true;
+				w = waiting;
+				waiting = null;
+			}
+			releaseAll();
+			if (w != null)
+				w.unblockSuccess(null);
+		}
+		
+		private void releaseAll() {
+			ByteBuffer data;
+			Async<IOException> dataDone;
+			Async<IOException> previous;
+			Async<IOException> end;
+			synchronized (this) {
+				data = pending;
+				dataDone = pendingDone;
+				previous = taken;
+				end = endDone;
+				pending = null;
+				pendingDone = null;
+				taken = null;
+				endDone = null;
+			}
+			if (data != null)
+				ByteArrayCache.getInstance().free(data);
+			if (previous != null)
+				previous.unblock();
+			if (dataDone != null)
+				dataDone.unblock();
+			if (end != null)
+				end.unblock();
+		}
+		
+	}
+	
+}
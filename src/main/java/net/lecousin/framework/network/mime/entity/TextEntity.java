@@ -106,7 +106,7 @@ public class TextEntity extends MimeEntity {
 			subBody = new byte[(int)(r.max - r.min + 1)];
 			System.arraycopy(body, (int)r.min, subBody, 0, subBody.length);
 		}
-		BinaryEntity subEntity = new BinaryEntity(null, new MimeHeaders(getHeaders().getHeaders()));
+		BinaryEntity subEntity = new BinaryEntity(null, getHeaders().copy());
 		subEntity.setContent(new ByteArrayIO(subBody, "range of text entity"));
 		return new Triple<>(r, Long.valueOf(body.length), subEntity);
 	}
@@ -19,6 +19,11 @@ public interface HeaderValueFormat {
 		parseTokens(MimeHeaderValueParser.parse(raw));
 	}
 	
+	/** Parse the raw value located between the given offsets. */
+	default void parseRawValue(CharSequence raw, int start, int end) throws MimeException {
+		parseRawValue(raw.subSequence(start, end).toString());
+	}
+	
 	/** Parse the given tokens. */
 	void parseTokens(List<Token> tokens) throws MimeException;
 	
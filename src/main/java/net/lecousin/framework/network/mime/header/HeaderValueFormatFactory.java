@@ -0,0 +1,51 @@
+package net.lecousin.framework.network.mime.header;
+
+import java.lang.reflect.Constructor;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Instantiate HeaderValueFormat without reflection, for the formats registered with a Supplier.
+ * Other formats are instantiated using their public constructor without parameter.
+ */
+public final class HeaderValueFormatFactory {
+
+	private HeaderValueFormatFactory() {
+		/* no instance */
+	}
+
+	private static Map<Class<?>, Supplier<? extends HeaderValueFormat>> suppliers = new ConcurrentHashMap<>();
+
+	static {
+		register(ParameterizedHeaderValue.class, ParameterizedHeaderValue::new);
+		register(ParameterizedHeaderValues.class, ParameterizedHeaderValues::new);
+		register(InternetAddressHeaderValue.class, InternetAddressHeaderValue::new);
+		register(InternetAddressListHeaderValue.class, InternetAddressListHeaderValue::new);
+	}
+
+	/** Register the way to instantiate a format. */
+	public static <T extends HeaderValueFormat> void register(Class<T> format, Supplier<T> supplier) {
+		suppliers.put(format, supplier);
+	}
+
+	/** Create a new instance of the given format. */
+	@SuppressWarnings("unchecked")
+	public static <T extends HeaderValueFormat> T newInstance(Class<T> format) throws ReflectiveOperationException {
+		Supplier<? extends HeaderValueFormat> supplier = suppliers.get(format);
+		if (supplier != null)
+			return (T)supplier.get();
+		Constructor<T> ctor = format.getConstructor();
+		T instance = ctor.newInstance();
+		// the constructor worked, keep it to avoid looking for it again
+		suppliers.putIfAbsent(format, () -> {
+			try {
+				return ctor.newInstance();
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException("Unable to instantiate header format " + format.getName(), e);
+			}
+		});
+		return instance;
+	}
+
+}
@@ -1,9 +1,11 @@
 package net.lecousin.framework.network.mime.header;
 
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
 import net.lecousin.framework.network.mime.MimeException;
+import net.lecousin.framework.network.mime.header.parser.MimeHeaderValueLexer;
 import net.lecousin.framework.network.mime.header.parser.SpecialCharacter;
 import net.lecousin.framework.network.mime.header.parser.Token;
 
@@ -15,15 +17,136 @@ public abstract class HeaderValues<V extends HeaderValueFormat> implements Heade
 
 	private List<V> values = new LinkedList<>();
 	
-	public List<V> getValues() {
+	// after parsing a raw value, values are parsed only when accessed: raw, and start and end of each value
+	private String raw = null;
+	private int[] bounds = null;
+	private HeaderValueFormat[] lazyValues = null;
+	
+	/** Return the list of values, parsing all of them if not yet done. */
+	public synchronized List<V> getValues() {
+		if (raw != null) {
+			for (int i = 0; i < lazyValues.length; ++i) {
+				try {
+					values.add(get(i));
+				} catch (MimeException e) {
+					throw new IllegalStateException("Value accepted for lazy parsing cannot be parsed", e);
+				}
+			}
+			clearLazy();
+		}
 		return values;
 	}
 	
+	/** Return the number of values. */
+	public synchronized int size() {
+		return raw != null ? lazyValues.length : values.size();
+	}
+	
+	/** Return the value at the given index, parsing only this value if not yet done. */
+	@SuppressWarnings("unchecked")
+	public synchronized V get(int index) throws MimeException {
+		if (raw == null)
+			return values.get(index);
+		V value = (V)lazyValues[index];
+		if (value == null) {
+			value = newValue();
+			value.parseRawValue(raw, bounds[index * 2], bounds[index * 2 + 1]);
+			lazyValues[index] = value;
+		}
+		return value;
+	}
+	
+	/** Return the value at the given index if already parsed, else null. */
+	@SuppressWarnings("unchecked")
+	protected synchronized V getParsed(int index) {
+		return raw == null ? values.get(index) : (V)lazyValues[index];
+	}
+	
+	/** Return the raw value containing the values not yet parsed, or null if all values are parsed. */
+	protected synchronized String getRaw() {
+		return raw;
+	}
+	
+	/** Return the start offset in {@link #getRaw()} of the value at the given index. */
+	protected synchronized int getRawStart(int index) {
+		return bounds[index * 2];
+	}
+	
+	/** Return the end offset in {@link #getRaw()} of the value at the given index. */
+	protected synchronized int getRawEnd(int index) {
+		return bounds[index * 2 + 1];
+	}
+	
+	private void clearLazy() {
+		raw = null;
+		bounds = null;
+		lazyValues = null;
+	}
+	
 	protected abstract V newValue();
 	
+	/** Return true if the parsing of the given value can be delayed until it is accessed,
+	 * which is possible only if its parsing cannot fail. By default it returns false.
+	 */
+	protected boolean canParseLazily(CharSequence raw, int start, int end) {
+		return false;
+	}
+	
+	@Override
+	public void parseRawValue(String raw) throws MimeException {
+		parseRawValue(raw, 0, raw.length());
+	}
+	
+	/** Parse the comma separated values, like {@link #parseTokens(List)} does: an empty element is ignored,
+	 * but an element containing only spaces or comments gives an empty value, so <code>a, ,b</code> gives 3 values
+	 * while <code>a,,b</code> gives 2 values.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public synchronized void parseRawValue(CharSequence raw, int start, int end) throws MimeException {
+		values.clear();
+		clearLazy();
+		String str = raw.toString();
+		MimeHeaderValueLexer lexer = new MimeHeaderValueLexer(str, start, end);
+		int[] b = new int[8];
+		HeaderValueFormat[] parsed = new HeaderValueFormat[4];
+		int count = 0;
+		boolean lazy = false;
+		int valueStart = start;
+		do {
+			// spaces and comments are tokens, so only an empty element is skipped
+			if (lexer.skipSegment(',') > 0) {
+				if (count == parsed.length) {
+					b = Arrays.copyOf(b, count * 4);
+					parsed = Arrays.copyOf(parsed, count * 2);
+				}
+				b[count * 2] = valueStart;
+				b[count * 2 + 1] = lexer.getStart();
+				if (canParseLazily(str, valueStart, lexer.getStart())) {
+					lazy = true;
+				} else {
+					V value = newValue();
+					value.parseRawValue(str, valueStart, lexer.getStart());
+					parsed[count] = value;
+				}
+				count++;
+			}
+			valueStart = lexer.getEnd();
+		} while (lexer.getKind() != MimeHeaderValueLexer.Kind.END);
+		if (lazy) {
+			this.raw = str;
+			bounds = b;
+			lazyValues = Arrays.copyOf(parsed, count);
+		} else {
+			for (int i = 0; i < count; ++i)
+				values.add((V)parsed[i]);
+		}
+	}
+	
 	@Override
-	public void parseTokens(List<Token> tokens) throws MimeException {
+	public synchronized void parseTokens(List<Token> tokens) throws MimeException {
 		values.clear();
+		clearLazy();
 		List<List<Token>> list = Token.splitBySpecialCharacter(tokens, ',');
 		for (List<Token> subList : list) {
 			V value = newValue();
@@ -35,7 +158,7 @@ public abstract class HeaderValues<V extends HeaderValueFormat> implements Heade
 	@Override
 	public List<Token> generateTokens() {
 		List<Token> tokens = new LinkedList<>();
-		for (V value : values) {
+		for (V value : getValues()) {
 			if (!tokens.isEmpty())
 				tokens.add(new SpecialCharacter(','));
 			tokens.addAll(value.generateTokens());
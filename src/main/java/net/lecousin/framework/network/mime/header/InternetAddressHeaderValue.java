@@ -3,8 +3,11 @@ package net.lecousin.framework.network.mime.header;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 
+import net.lecousin.framework.network.mime.BoundedCache;
 import net.lecousin.framework.network.mime.header.parser.Address;
+import net.lecousin.framework.network.mime.header.parser.MimeHeaderValueLexer;
 import net.lecousin.framework.network.mime.header.parser.Space;
 import net.lecousin.framework.network.mime.header.parser.Token;
 import net.lecousin.framework.network.mime.header.parser.Word;
@@ -26,6 +29,9 @@ public class InternetAddressHeaderValue implements HeaderValueFormat {
 	
 	protected String displayName;
 	protected String address;
+	private String domain;
+	
+	private static final BoundedCache<String, String> domains = new BoundedCache<>(256);
 	
 	public String getDisplayName() {
 		return displayName;
@@ -41,6 +47,85 @@ public class InternetAddressHeaderValue implements HeaderValueFormat {
 	
 	public void setAddress(String address) {
 		this.address = address;
+		domain = null;
+	}
+	
+	/** Return the domain part of the address, in lower case, or null if the address does not contain any '@'.
+	 * The same domain string is shared between addresses, so a large number of addresses keeps only one
+	 * instance of each domain.
+	 */
+	public String getDomain() {
+		if (domain != null)
+			return domain;
+		String a = address;
+		int i = a != null ? a.lastIndexOf('@') : -1;
+		if (i < 0)
+			return null;
+		String d = a.substring(i + 1);
+		String normalized = domains.get(d);
+		if (normalized == null) {
+			normalized = d.toLowerCase(Locale.US);
+			if (!normalized.equals(d)) {
+				String shared = domains.get(normalized);
+				if (shared != null)
+					normalized = shared;
+				else
+					domains.put(normalized, normalized);
+			}
+			domains.put(d, normalized);
+		}
+		domain = normalized;
+		return normalized;
+	}
+	
+	/** Return the cache used to share the domains returned by {@link #getDomain()}.
+	 * Its maximum size can be changed, or set to 0 to disable it.
+	 */
+	public static BoundedCache<String, String> getDomainCache() {
+		return domains;
+	}
+	
+	@Override
+	public void parseRawValue(String raw) {
+		parseRawValue(raw, 0, raw.length());
+	}
+	
+	@Override
+	public void parseRawValue(CharSequence raw, int start, int end) {
+		MimeHeaderValueLexer lexer = new MimeHeaderValueLexer(raw, start, end);
+		StringBuilder s = new StringBuilder(end - start);
+		// comments are removed, then leading and trailing spaces of the display name
+		boolean hasText = false;
+		int textStart = 0;
+		int textEnd = 0;
+		MimeHeaderValueLexer.Kind kind;
+		while ((kind = lexer.next()) != MimeHeaderValueLexer.Kind.END) {
+			switch (kind) {
+			case COMMENT:
+				continue;
+			case ADDRESS:
+				displayName = hasText ? s.substring(textStart, textEnd) : null;
+				s.setLength(0);
+				lexer.content().appendTrimmedSegment((char)0, s, false);
+				address = s.toString();
+				domain = null;
+				return;
+			case SPACE:
+				s.append(' ');
+				continue;
+			default:
+				if (!hasText) {
+					hasText = true;
+					textStart = s.length();
+				}
+				lexer.appendText(s);
+				textEnd = s.length();
+			}
+		}
+		// no Address token => full text is considered as address
+		displayName = null;
+		address = s.toString();
+		domain = null;
 	}
 	
 	@Override
@@ -53,11 +138,13 @@ public class InternetAddressHeaderValue implements HeaderValueFormat {
 			// no Address token => full text is considered as address
 			displayName = null;
 			address = Token.toString(tokens);
+			domain = null;
 			return;
 		}
 		List<Token> addrTokens = ((Address)tokens.get(i)).getContent();
 		Token.trim(addrTokens);
 		address = Token.toString(addrTokens);
+		domain = null;
 		while (tokens.size() > i)
 			tokens.remove(i);
 		Token.trim(tokens);
@@ -1,24 +1,40 @@
 package net.lecousin.framework.network.mime.header;
 
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
 
+import net.lecousin.framework.network.mime.header.parser.MimeHeaderValueLexer;
 import net.lecousin.framework.network.mime.header.parser.SpecialCharacter;
 import net.lecousin.framework.network.mime.header.parser.Token;
 
 /** Comma separated list of internet addresses.
  * Example: My Name &lt;myname@email.com&gt;, My Friend &lt;friend@email.com&gt;
+ * <p>
+ * When parsed from a raw value, the addresses are created only when the list is requested:
+ * {@link #iterator()} creates them one at a time, and {@link #count()} does not create them.
+ * This is not done for a sub-class, so the addresses field is always filled for it.
+ * </p>
  */
-public class InternetAddressListHeaderValue implements HeaderValueFormat {
+public class InternetAddressListHeaderValue implements HeaderValueFormat, Iterable<InternetAddressHeaderValue> {
 
 	protected List<InternetAddressHeaderValue> addresses = new LinkedList<>();
 	
+	// raw value not yet parsed into addresses, only when the list of addresses is empty
+	private volatile String pendingRaw = null;
+	private int pendingStart;
+	private int pendingEnd;
+	
+	/** Return the list of addresses, parsing all of them if not yet done. */
 	public List<InternetAddressHeaderValue> getAddresses() {
+		parsePending();
 		return addresses;
 	}
 
 	/** Add an address. */
 	public void addAddress(InternetAddressHeaderValue address) {
+		parsePending();
 		addresses.add(address);
 	}
 	
@@ -27,8 +43,77 @@ public class InternetAddressListHeaderValue implements HeaderValueFormat {
 		addAddress(new InternetAddressHeaderValue(displayName, address));
 	}
 	
+	/** Iterate on the addresses. If not yet parsed, each address is created only when reached, and is not kept. */
+	@Override
+	public Iterator<InternetAddressHeaderValue> iterator() {
+		String raw;
+		int start;
+		int end;
+		synchronized (this) {
+			raw = pendingRaw;
+			if (raw == null)
+				return addresses.iterator();
+			start = pendingStart;
+			end = pendingEnd;
+		}
+		return new AddressIterator(raw, start, end);
+	}
+	
+	/** Return the number of addresses, without creating them if not yet parsed. */
+	public int count() {
+		String raw;
+		int start;
+		int end;
+		synchronized (this) {
+			raw = pendingRaw;
+			if (raw == null)
+				return addresses.size();
+			start = pendingStart;
+			end = pendingEnd;
+		}
+		Scanner scanner = new Scanner(raw, start, end);
+		int count = 0;
+		while (scanner.next())
+			count++;
+		return count;
+	}
+	
+	private void parsePending() {
+		if (pendingRaw == null)
+			return;
+		synchronized (this) {
+			String raw = pendingRaw;
+			if (raw == null)
+				return;
+			Scanner scanner = new Scanner(raw, pendingStart, pendingEnd);
+			while (scanner.next())
+				addresses.add(scanner.createAddress());
+			pendingRaw = null;
+		}
+	}
+	
+	@Override
+	public void parseRawValue(String raw) {
+		parseRawValue(raw, 0, raw.length());
+	}
+	
+	@Override
+	public void parseRawValue(CharSequence raw, int start, int end) {
+		// addresses are appended to the existing ones, the parsing is delayed only if there is none,
+		// and if this is not a sub-class which may use the addresses field directly
+		parsePending();
+		synchronized (this) {
+			pendingStart = start;
+			pendingEnd = end;
+			pendingRaw = raw.toString();
+		}
+		if (!addresses.isEmpty() || getClass() != InternetAddressListHeaderValue.class)
+			parsePending();
+	}
+	
 	@Override
 	public void parseTokens(List<Token> tokens) {
+		parsePending();
 		List<List<Token>> list = Token.splitBySpecialCharacter(tokens, ',');
 		for (List<Token> addrTokens : list) {
 			Token.trim(addrTokens);
@@ -42,12 +127,78 @@ public class InternetAddressListHeaderValue implements HeaderValueFormat {
 	@Override
 	public List<Token> generateTokens() {
 		List<Token> tokens = new LinkedList<>();
-		for (InternetAddressHeaderValue addr : addresses) {
+		for (InternetAddressHeaderValue addr : this) {
 			if (!tokens.isEmpty())
 				tokens.add(new SpecialCharacter(','));
 			tokens.addAll(addr.generateTokens());
 		}
 		return tokens;
 	}
+	
+	/** Find the range of each address in a raw value, excluding leading and trailing spaces. */
+	private static final class Scanner {
+		
+		private Scanner(String raw, int start, int end) {
+			this.raw = raw;
+			lexer = new MimeHeaderValueLexer(raw, start, end);
+		}
+		
+		private final String raw;
+		private final MimeHeaderValueLexer lexer;
+		private boolean ended = false;
+		private int addrStart;
+		private int addrEnd;
+		
+		/** Move to the next non-empty address, return false if there is no more. */
+		private boolean next() {
+			addrStart = -1;
+			while (!ended) {
+				MimeHeaderValueLexer.Kind kind = lexer.next();
+				if (kind == MimeHeaderValueLexer.Kind.END || lexer.isSpecial(',')) {
+					ended = kind == MimeHeaderValueLexer.Kind.END;
+					if (addrStart >= 0)
+						return true;
+				} else if (kind != MimeHeaderValueLexer.Kind.SPACE) {
+					if (addrStart < 0) addrStart = lexer.getStart();
+					addrEnd = lexer.getEnd();
+				}
+			}
+			return false;
+		}
+		
+		private InternetAddressHeaderValue createAddress() {
+			InternetAddressHeaderValue addr = new InternetAddressHeaderValue();
+			addr.parseRawValue(raw, addrStart, addrEnd);
+			return addr;
+		}
+		
+	}
+	
+	/** Iterator creating the addresses one at a time. */
+	private static final class AddressIterator implements Iterator<InternetAddressHeaderValue> {
+		
+		private AddressIterator(String raw, int start, int end) {
+			scanner = new Scanner(raw, start, end);
+			hasNext = scanner.next();
+		}
+		
+		private final Scanner scanner;
+		private boolean hasNext;
+		
+		@Override
+		public boolean hasNext() {
+			return hasNext;
+		}
+		
+		@Override
+		public InternetAddressHeaderValue next() {
+			if (!hasNext)
+				throw new NoSuchElementException();
+			InternetAddressHeaderValue addr = scanner.createAddress();
+			hasNext = scanner.next();
+			return addr;
+		}
+		
+	}
 
 }
@@ -1,9 +1,12 @@
 package net.lecousin.framework.network.mime.header;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.UnaryOperator;
 
 import net.lecousin.framework.application.LCCore;
+import net.lecousin.framework.network.mime.BoundedCache;
 import net.lecousin.framework.network.mime.MimeException;
 import net.lecousin.framework.text.CharArrayStringBuffer;
 import net.lecousin.framework.text.IString;
@@ -13,87 +16,380 @@ public class MimeHeader {
 
 	/** Constructor. */
 	public MimeHeader(String name, String rawValue) {
+		this(MimeHeaderName.of(name), rawValue);
+	}
+	
+	/** Constructor. */
+	public MimeHeader(String name, HeaderValueFormat value) {
+		this(MimeHeaderName.of(name), value);
+	}
+	
+	/** Constructor. */
+	public MimeHeader(MimeHeaderName name, String rawValue) {
 		this.name = name;
-		this.nameLowerCase = name.toLowerCase();
 		this.rawValue = rawValue;
 	}
 	
 	/** Constructor. */
-	public MimeHeader(String name, HeaderValueFormat value) {
+	public MimeHeader(MimeHeaderName name, HeaderValueFormat value) {
+		this.name = name;
+		this.value = value;
+	}
+	
+	/** Constructor from a slice of a raw headers block, the strings are created only when first needed.
+	 * The given bytes must not be modified anymore by the caller.
+	 * If the name is a registered one, it is given and the name offsets are ignored.
+	 */
+	MimeHeader(MimeHeaderName name, byte[] block, int nameStart, int nameEnd, int valueStart, int valueEnd) {
 		this.name = name;
-		this.nameLowerCase = name.toLowerCase();
-		parsed = new HashMap<>(5);
-		parsed.put(value.getClass(), value);
+		this.block = block;
+		this.nameStart = nameStart;
+		this.nameEnd = nameEnd;
+		this.valueStart = valueStart;
+		this.valueEnd = valueEnd;
 	}
 	
-	private String name;
-	private String nameLowerCase;
+	private MimeHeaderName name;
 	private String rawValue;
-	private Map<Class<? extends HeaderValueFormat>, HeaderValueFormat> parsed = null;
+	// parsed values: most of the time a header is used with a single format, so we keep it inline
+	private volatile HeaderValueFormat value = null;
+	private volatile HeaderValueFormat[] otherValues = null;
 	
-	public String getName() {
+	private byte[] block;
+	private int nameStart;
+	private int nameEnd;
+	private int valueStart;
+	private int valueEnd;
+	
+	// set when the header belongs to frozen MimeHeaders
+	boolean frozen = false;
+	
+	/** Return the name of this header. */
+	public MimeHeaderName getHeaderName() {
+		if (name == null)
+			name = MimeHeaderName.create(new String(block, nameStart, nameEnd - nameStart, StandardCharsets.ISO_8859_1));
 		return name;
 	}
 	
+	public String getName() {
+		return getHeaderName().getName();
+	}
+	
+	/** Return the name in lower case. */
 	public String getNameLowerCase() {
-		return nameLowerCase;
+		return getHeaderName().getLowerCase();
+	}
+	
+	/** Return true if this header has the given name (case insensitive), without creating any string. */
+	public boolean isName(String otherName) {
+		if (name != null)
+			return name.is(otherName);
+		return MimeHeaderName.isName(block, nameStart, nameEnd, otherName);
+	}
+	
+	/** Case insensitive hash code of this header's name, consistent with {@link MimeHeaderName#hashCode()}. */
+	int nameHash() {
+		if (name != null)
+			return name.hashCode();
+		return MimeHeaderName.hashName(block, nameStart, nameEnd);
 	}
 	
 	/** Return the value as a raw string. */
 	public String getRawValue() {
-		if (rawValue == null && parsed != null) {
-			CharArrayStringBuffer s = new CharArrayStringBuffer();
-			parsed.values().iterator().next().generate(s, Integer.MAX_VALUE, Integer.MAX_VALUE);
-			rawValue = s.toString();
+		if (rawValue == null && block != null) {
+			rawValue = new String(block, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1);
+		} else if (rawValue == null) {
+			HeaderValueFormat v = value;
+			if (v != null) {
+				CharArrayStringBuffer s = new CharArrayStringBuffer();
+				v.generate(s, Integer.MAX_VALUE, Integer.MAX_VALUE);
+				rawValue = s.toString();
+			}
 		}
 		return rawValue;
 	}
 	
-	/** Return the value parsed into the requested format. */
+	/** Return the value parsed into the requested format.
+	 * Parsed values are cached, so several threads can safely get values from the same header, which is parsed only once.
+	 */
 	public <T extends HeaderValueFormat> T getValue(Class<T> format) throws MimeException {
-		if (parsed != null) {
-			@SuppressWarnings("unchecked")
-			T t = (T)parsed.get(format);
+		return getValue(format, null, null);
+	}
+	
+	/** Same as {@link #getValue(Class)}, but the parsing is avoided if the raw value is found in the given cache.
+	 * The cache contains values shared between headers, which are never modified: this header receives a copy of it.
+	 */
+	<T extends HeaderValueFormat> T getValue(Class<T> format, BoundedCache<String, T> cache, UnaryOperator<T> copy)
+	throws MimeException {
+		T t = getParsedValue(format);
+		if (t != null)
+			return t;
+		synchronized (this) {
+			t = getParsedValue(format);
 			if (t != null)
 				return t;
-		} else if (rawValue == null) {
-			return null;
-		} else {
-			parsed = new HashMap<>(5);
+			String raw = getRawValue();
+			if (raw == null)
+				return null;
+			T cached = cache != null ? cache.get(raw) : null;
+			if (cached != null) {
+				t = copy.apply(cached);
+			} else {
+				try { t = HeaderValueFormatFactory.newInstance(format); }
+				catch (Exception e) {
+					LCCore.getApplication().getLoggerFactory().getLogger(MimeHeader.class).error("Unable to instantiate header format class", e);
+					return null;
+				}
+				t.parseRawValue(raw);
+				if (cache != null && cache.getMaxSize() > 0)
+					cache.put(raw, copy.apply(t));
+			}
+			if (value == null) {
+				value = t;
+			} else {
+				HeaderValueFormat[] others = otherValues;
+				if (others == null) {
+					others = new HeaderValueFormat[] { t };
+				} else {
+					others = Arrays.copyOf(others, others.length + 1);
+					others[others.length - 1] = t;
+				}
+				otherValues = others;
+			}
+			return t;
 		}
-		T t;
-		try { t = format.newInstance(); }
-		catch (Exception e) {
-			LCCore.getApplication().getLoggerFactory().getLogger(MimeHeader.class).error("Unable to instantiate header format class", e);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private <T extends HeaderValueFormat> T getParsedValue(Class<T> format) {
+		HeaderValueFormat v = value;
+		if (v == null)
 			return null;
+		if (v.getClass() == format)
+			return (T)v;
+		HeaderValueFormat[] others = otherValues;
+		if (others != null)
+			for (HeaderValueFormat o : others)
+				if (o.getClass() == format)
+					return (T)o;
+		return null;
+	}
+	
+	/** Parse the value as a decimal number, directly from the stored value,
+	 * or return the default value if it is not a valid number.
+	 */
+	public long getLongValue(long defaultValue) {
+		byte[] b = block;
+		String s = b == null ? getRawValue() : null;
+		int start = b != null ? valueStart : 0;
+		int end = b != null ? valueEnd : s != null ? s.length() : 0;
+		if (start == end)
+			return defaultValue;
+		int i = start;
+		char c = b != null ? (char)(b[i] & 0xFF) : s.charAt(i);
+		boolean negative = c == '-';
+		if (negative || c == '+') {
+			if (++i == end)
+				return defaultValue;
 		}
-		t.parseRawValue(rawValue);
-		parsed.put(format, t);
-		return t;
+		// accumulate negatively to handle Long.MIN_VALUE
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long result = 0;
+		for (; i < end; ++i) {
+			c = b != null ? (char)(b[i] & 0xFF) : s.charAt(i);
+			if (c < '0' || c > '9')
+				return defaultValue;
+			int digit = c - '0';
+			if (result < limit / 10)
+				return defaultValue;
+			result *= 10;
+			if (result < limit + digit)
+				return defaultValue;
+			result -= digit;
+		}
+		return negative ? result : -result;
 	}
 	
 	/** Set the value as a raw string. */
-	public void setRawValue(String raw) {
-		parsed = null;
+	public synchronized void setRawValue(String raw) {
+		checkNotFrozen();
+		releaseBlock();
+		value = null;
+		otherValues = null;
 		rawValue = raw;
 	}
 	
 	/** Set the value in a specific format. */
-	public <T extends HeaderValueFormat> void setValue(T value) {
+	public synchronized <T extends HeaderValueFormat> void setValue(T value) {
+		checkNotFrozen();
+		releaseBlock();
 		rawValue = null;
-		parsed = new HashMap<>(5);
-		parsed.put(value.getClass(), value);
+		otherValues = null;
+		this.value = value;
+	}
+	
+	private void checkNotFrozen() {
+		if (frozen)
+			throw new IllegalStateException("Header " + getName() + " belongs to frozen headers and cannot be modified");
+	}
+	
+	/** Return a copy of this header, sharing its raw value, which can be modified.
+	 * A value which is only available in a specific format is copied, so modifying it in one header does not
+	 * change the other.
+	 */
+	public synchronized MimeHeader copy() {
+		MimeHeader h;
+		if (block != null) {
+			h = new MimeHeader(name, block, nameStart, nameEnd, valueStart, valueEnd);
+			h.rawValue = rawValue;
+		} else if (rawValue != null) {
+			h = new MimeHeader(name, rawValue);
+		} else if (value != null) {
+			h = copyValue();
+		} else {
+			h = new MimeHeader(name, (HeaderValueFormat)null);
+		}
+		return h;
+	}
+	
+	private MimeHeader copyValue() {
+		if (value instanceof ParameterizedHeaderValue)
+			return new MimeHeader(name, ((ParameterizedHeaderValue)value).copy());
+		// parse the generated value into a new instance, or keep the generated value if it cannot be parsed
+		CharArrayStringBuffer s = new CharArrayStringBuffer();
+		value.generate(s, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		String raw = s.toString();
+		try {
+			HeaderValueFormat copy = HeaderValueFormatFactory.newInstance(value.getClass());
+			copy.parseRawValue(raw);
+			return new MimeHeader(name, copy);
+		} catch (Exception e) {
+			return new MimeHeader(name, raw);
+		}
+	}
+	
+	private void releaseBlock() {
+		if (block == null)
+			return;
+		getHeaderName();
+		block = null;
 	}
 	
 	/** Generate this header into the given string. */
 	public void appendTo(IString s) {
-		s.append(name).append(": ");
-		if (rawValue == null && parsed != null) {
-			parsed.values().iterator().next().generate(s, 80 - name.length() - 2, 79);
+		if (name == null) {
+			for (int i = nameStart; i < nameEnd; ++i)
+				s.append((char)(block[i] & 0xFF));
+			s.append(": ");
+		} else {
+			s.append(name.getPrefix());
+		}
+		if (rawValue == null && block != null) {
+			for (int i = valueStart; i < valueEnd; ++i)
+				s.append((char)(block[i] & 0xFF));
+		} else if (rawValue == null && value != null) {
+			value.generate(s, 80 - name.getName().length() - 2, 79);
 		} else {
 			s.append(rawValue);
 		}
 		s.append("\r\n");
 	}
 	
+	/** Return the number of bytes needed to store the name and raw value as ISO-8859-1, or -1 if not possible. */
+	int getCompactLength() {
+		int len;
+		if (name == null) {
+			len = nameEnd - nameStart;
+		} else {
+			len = latin1Length(name.getName());
+			if (len < 0) return -1;
+		}
+		if (block != null)
+			return len + valueEnd - valueStart;
+		int l = latin1Length(getRawValue());
+		return l < 0 ? -1 : len + l;
+	}
+	
+	private static int latin1Length(String s) {
+		if (s == null)
+			return 0;
+		for (int i = s.length() - 1; i >= 0; --i)
+			if (s.charAt(i) > 0xFF)
+				return -1;
+		return s.length();
+	}
+	
+	/** Copy the name and the raw value into the arena, and set their offsets. */
+	void writeCompact(byte[] arena, int pos, int[] offsets, int offsetsIndex) {
+		offsets[offsetsIndex] = pos;
+		if (name == null) {
+			System.arraycopy(block, nameStart, arena, pos, nameEnd - nameStart);
+			pos += nameEnd - nameStart;
+		} else {
+			pos = putChars(arena, pos, name.getName());
+		}
+		offsets[offsetsIndex + 1] = pos;
+		offsets[offsetsIndex + 2] = pos;
+		if (block != null) {
+			System.arraycopy(block, valueStart, arena, pos, valueEnd - valueStart);
+			pos += valueEnd - valueStart;
+		} else {
+			String raw = getRawValue();
+			if (raw != null)
+				pos = putChars(arena, pos, raw);
+		}
+		offsets[offsetsIndex + 3] = pos;
+	}
+	
+	private static int putChars(byte[] arena, int pos, String s) {
+		for (int i = 0, l = s.length(); i < l; ++i)
+			arena[pos++] = (byte)s.charAt(i);
+		return pos;
+	}
+	
+	/** Return the value generated from the format when this header has no raw value, else null. */
+	String getGeneratedValue() {
+		if (rawValue != null || block != null || value == null)
+			return null;
+		CharArrayStringBuffer s = new CharArrayStringBuffer();
+		value.generate(s, 80 - name.getName().length() - 2, 79);
+		return s.toString();
+	}
+	
+	/** Return the number of bytes generated by {@link #generate(ByteBuffer, String)}. */
+	int getGeneratedLength(String generatedValue) {
+		int len = name == null ? nameEnd - nameStart + 2 : name.getPrefixBytes().length;
+		if (block != null)
+			len += valueEnd - valueStart;
+		else if (generatedValue != null)
+			len += generatedValue.length();
+		else if (rawValue != null)
+			len += rawValue.length();
+		return len + 2;
+	}
+	
+	/** Generate this header into the given buffer, the same way as {@link #appendTo(IString)}.
+	 * The generated value must be the one returned by {@link #getGeneratedValue()}.
+	 */
+	void generate(ByteBuffer buffer, String generatedValue) {
+		if (name == null) {
+			buffer.put(block, nameStart, nameEnd - nameStart);
+			buffer.put((byte)':').put((byte)' ');
+		} else {
+			buffer.put(name.getPrefixBytes());
+		}
+		if (block != null)
+			buffer.put(block, valueStart, valueEnd - valueStart);
+		else if (generatedValue != null)
+			putChars(buffer, generatedValue);
+		else if (rawValue != null)
+			putChars(buffer, rawValue);
+		buffer.put((byte)'\r').put((byte)'\n');
+	}
+	
+	private static void putChars(ByteBuffer buffer, String s) {
+		for (int i = 0, l = s.length(); i < l; ++i)
+			buffer.put((byte)s.charAt(i));
+	}
+	
 }
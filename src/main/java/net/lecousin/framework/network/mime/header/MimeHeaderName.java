@@ -0,0 +1,200 @@
+package net.lecousin.framework.network.mime.header;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Name of a MIME header, with its lower case form, a case insensitive hash code, and its generated form <i>Name: </i>.
+ * Well-known header names are registered with canonical instances, shared by all headers having exactly this name,
+ * so parsing or generating them does not create any string.
+ */
+public final class MimeHeaderName {
+
+	private MimeHeaderName(String name, boolean precompute) {
+		this.name = name;
+		this.hash = hashName(name);
+		if (precompute) {
+			lowerCase = name.toLowerCase();
+			getPrefixBytes();
+		}
+	}
+
+	private final String name;
+	private final int hash;
+	private String lowerCase;
+	private String prefix;
+	private volatile byte[] prefixBytes;
+
+	public String getName() {
+		return name;
+	}
+
+	/** Return the name in lower case. */
+	public String getLowerCase() {
+		if (lowerCase == null)
+			lowerCase = name.toLowerCase();
+		return lowerCase;
+	}
+
+	/** Return the string to generate before the value of a header: the name followed by a colon and a space. */
+	public String getPrefix() {
+		if (prefix == null)
+			prefix = name + ": ";
+		return prefix;
+	}
+
+	/** Return the bytes to generate before the value of a header: the name followed by a colon and a space. */
+	public byte[] getPrefixBytes() {
+		if (prefixBytes == null)
+			prefixBytes = getPrefix().getBytes(StandardCharsets.ISO_8859_1);
+		return prefixBytes;
+	}
+
+	/** Return true if this is the given name (case insensitive). */
+	public boolean is(String otherName) {
+		// registered names are usually compared with the same string constant
+		return otherName == name || name.equalsIgnoreCase(otherName);
+	}
+
+	/** Return true if this is the given name (case insensitive). */
+	public boolean is(MimeHeaderName otherName) {
+		return otherName == this || (otherName.hash == hash && name.equalsIgnoreCase(otherName.name));
+	}
+
+	/** Case insensitive hash code. */
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	/** Case insensitive equality. */
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof MimeHeaderName && is((MimeHeaderName)obj);
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	/** Case insensitive hash code of a header name: 2 names equal ignoring case have the same hash code. */
+	static int hashName(CharSequence name) {
+		int h = 0;
+		for (int i = 0, l = name.length(); i < l; ++i)
+			h = 31 * h + foldCase(name.charAt(i));
+		return h;
+	}
+
+	/** Case insensitive hash code of a header name given as ISO-8859-1 bytes, same as {@link #hashName(CharSequence)}. */
+	static int hashName(byte[] bytes, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; ++i)
+			h = 31 * h + foldCase((char)(bytes[i] & 0xFF));
+		return h;
+	}
+
+	/** Return true if the ISO-8859-1 bytes between start and end are the given name (case insensitive). */
+	static boolean isName(byte[] bytes, int start, int end, CharSequence name) {
+		int len = end - start;
+		if (name.length() != len)
+			return false;
+		for (int i = 0; i < len; ++i) {
+			char c1 = (char)(bytes[start + i] & 0xFF);
+			char c2 = name.charAt(i);
+			if (c1 != c2 && foldCase(c1) != foldCase(c2))
+				return false;
+		}
+		return true;
+	}
+
+	/** Fold the case of a character, so that 2 characters equal ignoring case give the same result. */
+	static char foldCase(char c) {
+		if (c < 128)
+			return c >= 'A' && c <= 'Z' ? (char)(c | 0x20) : c;
+		// same folding as String.equalsIgnoreCase
+		return Character.toLowerCase(Character.toUpperCase(c));
+	}
+
+	// *** Registry ***
+
+	private static final Map<String, MimeHeaderName> byName = new HashMap<>(512);
+	private static final MimeHeaderName[] table = new MimeHeaderName[512];
+
+	/** Return the registered instance having exactly the given name, or a new instance. */
+	public static MimeHeaderName of(String name) {
+		MimeHeaderName n = byName.get(name);
+		if (n != null)
+			return n;
+		return new MimeHeaderName(name, false);
+	}
+
+	/** Return the registered instance having exactly the given name, or null. */
+	static MimeHeaderName find(byte[] bytes, int start, int end) {
+		int len = end - start;
+		int mask = table.length - 1;
+		for (int slot = hashName(bytes, start, end) & mask; table[slot] != null; slot = (slot + 1) & mask) {
+			String s = table[slot].name;
+			if (s.length() != len)
+				continue;
+			int i = 0;
+			while (i < len && s.charAt(i) == (char)(bytes[start + i] & 0xFF))
+				i++;
+			if (i == len)
+				return table[slot];
+		}
+		return null;
+	}
+
+	/** Create a new instance, not registered. */
+	static MimeHeaderName create(String name) {
+		return new MimeHeaderName(name, false);
+	}
+
+	private static MimeHeaderName register(String name) {
+		MimeHeaderName n = put(name);
+		String lower = name.toLowerCase();
+		if (!lower.equals(name))
+			put(lower);
+		return n;
+	}
+
+	private static MimeHeaderName put(String name) {
+		MimeHeaderName n = new MimeHeaderName(name, true);
+		byName.put(name, n);
+		int mask = table.length - 1;
+		int slot = n.hash & mask;
+		while (table[slot] != null)
+			slot = (slot + 1) & mask;
+		table[slot] = n;
+		return n;
+	}
+
+	public static final MimeHeaderName CONTENT_TYPE = register(MimeHeaders.CONTENT_TYPE);
+	public static final MimeHeaderName CONTENT_LENGTH = register(MimeHeaders.CONTENT_LENGTH);
+	public static final MimeHeaderName CONTENT_DISPOSITION = register(MimeHeaders.CONTENT_DISPOSITION);
+	public static final MimeHeaderName TRANSFER_ENCODING = register(MimeHeaders.TRANSFER_ENCODING);
+	public static final MimeHeaderName CONTENT_TRANSFER_ENCODING = register(MimeHeaders.CONTENT_TRANSFER_ENCODING);
+	public static final MimeHeaderName CONTENT_ENCODING = register(MimeHeaders.CONTENT_ENCODING);
+
+	static {
+		for (String name : new String[] {
+			// HTTP
+			"Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Accept-Ranges", "Access-Control-Allow-Origin",
+			"Age", "Allow", "Authorization", "Cache-Control", "Connection", "Content-Language", "Content-Location",
+			"Content-Range", "Cookie", "Date", "ETag", "Expect", "Expires", "Host", "If-Match", "If-Modified-Since",
+			"If-None-Match", "If-Range", "If-Unmodified-Since", "Keep-Alive", "Last-Modified", "Location", "Origin",
+			"Pragma", "Proxy-Authenticate", "Proxy-Authorization", "Range", "Referer", "Retry-After", "Server",
+			"Set-Cookie", "TE", "Trailer", "Upgrade", "User-Agent", "Vary", "Via", "Warning", "WWW-Authenticate",
+			"X-Forwarded-For", "X-Forwarded-Host", "X-Forwarded-Proto", "X-Requested-With",
+			// mail
+			"MIME-Version", "Content-ID", "Content-Description", "Message-ID", "Subject", "From", "To", "Cc", "Bcc",
+			"Reply-To", "Sender", "Received", "Return-Path", "In-Reply-To", "References", "DKIM-Signature",
+			"Received-SPF", "Authentication-Results", "ARC-Seal", "ARC-Message-Signature", "ARC-Authentication-Results",
+			"List-Unsubscribe", "List-Id", "Delivered-To", "X-Mailer", "Importance", "Priority"
+		})
+			register(name);
+	}
+
+}
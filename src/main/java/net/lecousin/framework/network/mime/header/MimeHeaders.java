@@ -1,22 +1,31 @@
 package net.lecousin.framework.network.mime.header;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.function.Consumer;
 
 import net.lecousin.framework.application.LCCore;
 import net.lecousin.framework.collections.LinkedArrayList;
 import net.lecousin.framework.concurrent.async.AsyncSupplier;
+import net.lecousin.framework.concurrent.async.IAsync;
+import net.lecousin.framework.concurrent.util.AsyncConsumer;
 import net.lecousin.framework.concurrent.util.PartialAsyncConsumer;
 import net.lecousin.framework.io.data.Bytes;
 import net.lecousin.framework.log.Logger;
+import net.lecousin.framework.memory.ByteArrayCache;
+import net.lecousin.framework.network.mime.BoundedCache;
 import net.lecousin.framework.network.mime.MimeException;
 import net.lecousin.framework.text.ByteArrayStringIso8859;
 import net.lecousin.framework.text.ByteArrayStringIso8859Buffer;
-import net.lecousin.framework.text.CharArrayString;
 import net.lecousin.framework.text.IString;
-import net.lecousin.framework.util.Runnables.ConsumerThrows;
 
 /** MIME headers container. */
 public class MimeHeaders {
@@ -38,37 +47,262 @@ public class MimeHeaders {
 	
 	// ***** Headers *****
 	
-	private LinkedArrayList<MimeHeader> headers = new LinkedArrayList<>(10);
+	private List<MimeHeader> headers = new LinkedArrayList<>(10);
+	private volatile NameIndex index = null;
 	
+	/** Minimum number of headers before lookups by name use a hash index instead of a linear scan. */
+	private static final int INDEX_THRESHOLD = 8;
+	
+	private HeadersView view = null;
+	
+	/** When not null, the headers are frozen and this is their generated form. */
+	private byte[] frozen = null;
+	
+	/** Return an immutable snapshot of these headers, holding their generated form so it can be sent many times
+	 * without generating the headers again.
+	 * Any modification of the snapshot first replaces its headers by an unfrozen copy, so other copies of the snapshot
+	 * are not impacted. Modifying directly a MimeHeader of the snapshot throws an IllegalStateException.
+	 */
+	public MimeHeaders freeze() {
+		if (frozen != null)
+			return copy();
+		MimeHeaders snapshot = new MimeHeaders();
+		for (MimeHeader h : headers) {
+			MimeHeader c = h.copy();
+			c.frozen = true;
+			snapshot.headers.add(c);
+		}
+		snapshot.frozen = snapshot.generateBytes();
+		return snapshot;
+	}
+	
+	/** Return true if these headers are a frozen snapshot. */
+	public boolean isFrozen() {
+		return frozen != null;
+	}
+	
+	/** Return a copy of these headers. The copy of frozen or compact headers shares everything with them until it is modified. */
+	public MimeHeaders copy() {
+		MimeHeaders copy = new MimeHeaders();
+		if (isShared()) {
+			copy.headers = headers;
+			copy.frozen = frozen;
+		} else {
+			for (MimeHeader h : headers)
+				copy.headers.add(h.copy());
+		}
+		return copy;
+	}
+	
+	/**
+	 * Store all names and values in a single array of bytes, with their offsets, instead of having a MimeHeader object
+	 * per header. This reduces the memory used by headers kept for a long time.
+	 * The headers are then given as short-lived MimeHeader views which cannot be modified, and the values parsed
+	 * from them are not kept. Any modification of these MimeHeaders first restores a MimeHeader object per header.
+	 * Return false, without any change, if a name or a value contains a character which is not ISO-8859-1.
+	 */
+	public boolean compact() {
+		if (headers instanceof CompactList)
+			return true;
+		int size = headers.size();
+		int len = 0;
+		for (MimeHeader h : headers) {
+			int l = h.getCompactLength();
+			if (l < 0)
+				return false;
+			len += l;
+		}
+		byte[] arena = new byte[len];
+		int[] offsets = new int[size * 4];
+		MimeHeaderName[] names = new MimeHeaderName[size];
+		int i = 0;
+		for (MimeHeader h : headers) {
+			h.writeCompact(arena, i == 0 ? 0 : offsets[i * 4 - 1], offsets, i * 4);
+			names[i] = MimeHeaderName.find(arena, offsets[i * 4], offsets[i * 4 + 1]);
+			i++;
+		}
+		headers = new CompactList(arena, offsets, names);
+		index = null;
+		return true;
+	}
+	
+	/** Return true if the headers are stored in a compact form. */
+	public boolean isCompact() {
+		return headers instanceof CompactList;
+	}
+	
+	/** Return true if the headers list cannot be modified because it is frozen or compact. */
+	private boolean isShared() {
+		return frozen != null || headers instanceof CompactList;
+	}
+	
+	/** Before a modification, replace frozen or compact headers by a list of modifiable headers. */
+	private void thaw() {
+		if (!isShared())
+			return;
+		LinkedArrayList<MimeHeader> list = new LinkedArrayList<>(10);
+		for (MimeHeader h : headers)
+			list.add(h.copy());
+		headers = list;
+		index = null;
+		frozen = null;
+	}
+	
+	/** Return the list of headers. Any modification of the returned list discards the name index. */
 	public List<MimeHeader> getHeaders() {
-		return headers;
+		if (view == null)
+			view = new HeadersView();
+		return view;
+	}
+	
+	/** View of the headers list, discarding the name index on modification. */
+	private final class HeadersView extends AbstractList<MimeHeader> {
+		
+		@Override
+		public MimeHeader get(int i) {
+			return headers.get(i);
+		}
+		
+		@Override
+		public int size() {
+			return headers.size();
+		}
+		
+		@Override
+		public MimeHeader set(int i, MimeHeader h) {
+			thaw();
+			index = null;
+			return headers.set(i, h);
+		}
+		
+		@Override
+		public void add(int i, MimeHeader h) {
+			thaw();
+			index = null;
+			headers.add(i, h);
+		}
+		
+		@Override
+		public MimeHeader remove(int i) {
+			thaw();
+			index = null;
+			return headers.remove(i);
+		}
+		
+		@Override
+		public void clear() {
+			thaw();
+			index = null;
+			headers.clear();
+		}
+		
+		@Override
+		public Iterator<MimeHeader> iterator() {
+			return new Iterator<MimeHeader>() {
+				private Iterator<MimeHeader> it = headers.iterator();
+				private int pos = 0;
+				
+				@Override
+				public boolean hasNext() {
+					return it.hasNext();
+				}
+				
+				@Override
+				public MimeHeader next() {
+					MimeHeader h = it.next();
+					pos++;
+					return h;
+				}
+				
+				@Override
+				public void remove() {
+					if (isShared()) {
+						// continue on the modifiable copy
+						thaw();
+						it = headers.iterator();
+						for (int i = 0; i < pos; ++i)
+							it.next();
+					}
+					index = null;
+					it.remove();
+					pos--;
+				}
+			};
+		}
+		
+	}
+	
+	private NameIndex getIndex() {
+		NameIndex i = index;
+		if (i == null && headers.size() >= INDEX_THRESHOLD && !(headers instanceof CompactList)) {
+			i = new NameIndex(headers.size());
+			for (MimeHeader h : headers)
+				i.add(h);
+			index = i;
+		}
+		return i;
 	}
 	
 	/** Return the list of headers with the given name (case insensitive). */
 	public List<MimeHeader> getList(String name) {
-		name = name.toLowerCase();
 		ArrayList<MimeHeader> list = new ArrayList<>();
-		for (MimeHeader h : headers)
-			if (h.getNameLowerCase().equals(name))
-				list.add(h);
+		NameIndex i = getIndex();
+		if (i != null) {
+			int slot = i.find(name);
+			if (slot >= 0)
+				for (int j = 0; j < i.sizes[slot]; ++j)
+					list.add(i.headers[slot][j]);
+		} else if (headers instanceof CompactList) {
+			CompactList c = (CompactList)headers;
+			for (int j = 0; j < c.size(); ++j)
+				if (c.isName(j, name))
+					list.add(c.get(j));
+		} else {
+			for (MimeHeader h : headers)
+				if (h.isName(name))
+					list.add(h);
+		}
 		return list;
 	}
 	
 	/** Return the list of headers values with the given name (case insensitive), parsed into the requested format. */
 	public <T extends HeaderValueFormat> List<T> getValues(String name, Class<T> format) throws MimeException {
 		List<T> list = new LinkedList<>();
-		name = name.toLowerCase();
-		for (MimeHeader h : headers)
-			if (h.getNameLowerCase().equals(name))
-				list.add(h.getValue(format));
+		NameIndex i = getIndex();
+		if (i != null) {
+			int slot = i.find(name);
+			if (slot >= 0)
+				for (int j = 0; j < i.sizes[slot]; ++j)
+					list.add(i.headers[slot][j].getValue(format));
+		} else if (headers instanceof CompactList) {
+			CompactList c = (CompactList)headers;
+			for (int j = 0; j < c.size(); ++j)
+				if (c.isName(j, name))
+					list.add(c.get(j).getValue(format));
+		} else {
+			for (MimeHeader h : headers)
+				if (h.isName(name))
+					list.add(h.getValue(format));
+		}
 		return list;
 	}
 	
 	/** Return the first header with the given name (case insensitive) or null. */
 	public MimeHeader getFirst(String name) {
-		name = name.toLowerCase();
+		NameIndex i = getIndex();
+		if (i != null) {
+			int slot = i.find(name);
+			return slot >= 0 && i.sizes[slot] > 0 ? i.headers[slot][0] : null;
+		}
+		if (headers instanceof CompactList) {
+			CompactList c = (CompactList)headers;
+			for (int j = 0; j < c.size(); ++j)
+				if (c.isName(j, name))
+					return c.get(j);
+			return null;
+		}
 		for (MimeHeader h : headers)
-			if (h.getNameLowerCase().equals(name))
+			if (h.isName(name))
 				return h;
 		return null;
 	}
@@ -94,33 +328,111 @@ public class MimeHeaders {
 		MimeHeader h = getFirst(name);
 		if (h == null)
 			return null;
-		try {
-			return Long.valueOf(h.getRawValue());
-		} catch (Exception e) {
+		long value = h.getLongValue(Long.MIN_VALUE);
+		// the default value is also a valid number, check it with another default value
+		if (value == Long.MIN_VALUE && h.getLongValue(0) == 0)
 			return null;
+		return Long.valueOf(value);
+	}
+	
+	/** Return the value of the first header with the given name (case insensitive) parsed as a decimal number,
+	 * or the default value if there is no such header or its value is not a valid number.
+	 */
+	public long getFirstLong(String name, long defaultValue) {
+		MimeHeader h = getFirst(name);
+		return h == null ? defaultValue : h.getLongValue(defaultValue);
+	}
+	
+	/** Return the number of headers. */
+	public int size() {
+		return headers.size();
+	}
+	
+	/** Return the header at the given position. */
+	public MimeHeader get(int index) {
+		return headers.get(index);
+	}
+	
+	/** Call the consumer for each header with the given name (case insensitive), in order, without creating a list. */
+	public void forEach(String name, Consumer<MimeHeader> consumer) {
+		NameIndex i = getIndex();
+		if (i != null) {
+			int slot = i.find(name);
+			if (slot >= 0)
+				for (int j = 0; j < i.sizes[slot]; ++j)
+					consumer.accept(i.headers[slot][j]);
+		} else if (headers instanceof CompactList) {
+			CompactList c = (CompactList)headers;
+			for (int j = 0; j < c.size(); ++j)
+				if (c.isName(j, name))
+					consumer.accept(c.get(j));
+		} else {
+			for (MimeHeader h : headers)
+				if (h.isName(name))
+					consumer.accept(h);
+		}
+	}
+	
+	/** Call the consumer for each value of the headers with the given name (case insensitive),
+	 * parsed into the requested format, without creating a list.
+	 */
+	public <T extends HeaderValueFormat> void forEachValue(String name, Class<T> format, Consumer<T> consumer)
+	throws MimeException {
+		NameIndex i = getIndex();
+		if (i != null) {
+			int slot = i.find(name);
+			if (slot >= 0)
+				for (int j = 0; j < i.sizes[slot]; ++j)
+					consumer.accept(i.headers[slot][j].getValue(format));
+		} else if (headers instanceof CompactList) {
+			CompactList c = (CompactList)headers;
+			for (int j = 0; j < c.size(); ++j)
+				if (c.isName(j, name))
+					consumer.accept(c.get(j).getValue(format));
+		} else {
+			for (MimeHeader h : headers)
+				if (h.isName(name))
+					consumer.accept(h.getValue(format));
 		}
 	}
 	
 	/** Return true if thie message contains at least one header with the given name (case insensitive). */
 	public boolean has(String name) {
-		return getFirst(name) != null;
+		NameIndex i = getIndex();
+		if (i != null) {
+			int slot = i.find(name);
+			return slot >= 0 && i.sizes[slot] > 0;
+		}
+		if (headers instanceof CompactList) {
+			CompactList c = (CompactList)headers;
+			for (int j = 0; j < c.size(); ++j)
+				if (c.isName(j, name))
+					return true;
+			return false;
+		}
+		for (MimeHeader h : headers)
+			if (h.isName(name))
+				return true;
+		return false;
 	}
 	
 	/** Append a header. */
 	public MimeHeaders addRawValue(String name, String rawValue) {
-		headers.add(new MimeHeader(name, rawValue));
-		return this;
+		return add(new MimeHeader(name, rawValue));
 	}
 	
 	/** Append a header. */
 	public MimeHeaders add(String name, HeaderValueFormat value) {
-		headers.add(new MimeHeader(name, value));
-		return this;
+		return add(new MimeHeader(name, value));
 	}
 	
 	/** Append a header. */
 	public MimeHeaders add(MimeHeader header) {
+		thaw();
 		headers.add(header);
+		NameIndex i = index;
+		if (i != null)
+			i.add(header);
 		return this;
 	}
 
@@ -147,15 +459,160 @@ public class MimeHeaders {
 	
 	/** Remove any header with the given name. */
 	public MimeHeaders remove(String name) {
-		name = name.toLowerCase();
+		NameIndex i = index;
+		if (i != null) {
+			int slot = i.find(name);
+			if (slot < 0 || i.sizes[slot] == 0)
+				return this;
+			if (frozen == null)
+				i.remove(slot);
+		} else if (isShared() && !has(name)) {
+			return this;
+		}
+		thaw();
 		for (Iterator<MimeHeader> it = headers.iterator(); it.hasNext(); )
-			if (it.next().getNameLowerCase().equals(name))
+			if (it.next().isName(name))
 				it.remove();
 		return this;
 	}
 	
+	/** Headers stored in a single array of bytes: for each header, 4 offsets give the start and end of its name and value. */
+	private static final class CompactList extends AbstractList<MimeHeader> implements RandomAccess {
+		
+		private CompactList(byte[] arena, int[] offsets, MimeHeaderName[] names) {
+			this.arena = arena;
+			this.offsets = offsets;
+			this.names = names;
+		}
+		
+		private final byte[] arena;
+		private final int[] offsets;
+		private final MimeHeaderName[] names;
+		
+		@Override
+		public MimeHeader get(int i) {
+			int o = i * 4;
+			MimeHeader h = new MimeHeader(names[i], arena, offsets[o], offsets[o + 1], offsets[o + 2], offsets[o + 3]);
+			h.frozen = true;
+			return h;
+		}
+		
+		@Override
+		public int size() {
+			return names.length;
+		}
+		
+		/** Return true if the header at the given position has the given name (case insensitive). */
+		private boolean isName(int i, String name) {
+			MimeHeaderName n = names[i];
+			if (n != null)
+				return n.is(name);
+			return MimeHeaderName.isName(arena, offsets[i * 4], offsets[i * 4 + 1], name);
+		}
+		
+	}
+	
+	/**
+	 * Open addressing hash table from a case insensitive header name to the headers having this name, in order.
+	 * A name which is removed keeps its slot with its name and hash but no header, so no re-hashing is needed on removal.
+	 */
+	private static final class NameIndex {
+		
+		private NameIndex(int nbHeaders) {
+			int capacity = 16;
+			while (capacity < nbHeaders * 2)
+				capacity <<= 1;
+			allocate(capacity);
+		}
+		
+		private int[] hashes;
+		// name of each used slot, which is the key
+		private String[] names;
+		private MimeHeader[][] headers;
+		private int[] sizes;
+		private int used = 0;
+		
+		private void allocate(int capacity) {
+			hashes = new int[capacity];
+			names = new String[capacity];
+			headers = new MimeHeader[capacity][];
+			sizes = new int[capacity];
+		}
+		
+		private int find(String name) {
+			int hash = MimeHeaderName.hashName(name);
+			int mask = hashes.length - 1;
+			for (int slot = hash & mask; names[slot] != null; slot = (slot + 1) & mask)
+				if (hashes[slot] == hash && (names[slot] == name || names[slot].equalsIgnoreCase(name)))
+					return slot;
+			return -1;
+		}
+		
+		private void add(MimeHeader h) {
+			int hash = h.nameHash();
+			int mask = hashes.length - 1;
+			int slot = hash & mask;
+			while (names[slot] != null) {
+				if (hashes[slot] == hash && h.isName(names[slot])) {
+					append(slot, h);
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+			hashes[slot] = hash;
+			names[slot] = h.getName();
+			headers[slot] = new MimeHeader[] { h };
+			sizes[slot] = 1;
+			if (++used * 2 > hashes.length)
+				grow();
+		}
+		
+		/** Remove the headers of a slot, keeping only its name and hash, so the removed headers are not referenced anymore. */
+		private void remove(int slot) {
+			headers[slot] = null;
+			sizes[slot] = 0;
+		}
+		
+		private void append(int slot, MimeHeader h) {
+			MimeHeader[] list = headers[slot];
+			int size = sizes[slot];
+			if (list == null)
+				headers[slot] = list = new MimeHeader[2];
+			else if (size == list.length)
+				headers[slot] = list = Arrays.copyOf(list, size * 2);
+			list[size] = h;
+			sizes[slot] = size + 1;
+		}
+		
+		private void grow() {
+			int[] oldHashes = hashes;
+			String[] oldNames = names;
+			MimeHeader[][] oldHeaders = headers;
+			int[] oldSizes = sizes;
+			allocate(oldHashes.length * 2);
+			int mask = hashes.length - 1;
+			for (int i = 0; i < oldHashes.length; ++i) {
+				if (oldNames[i] == null)
+					continue;
+				int slot = oldHashes[i] & mask;
+				while (names[slot] != null)
+					slot = (slot + 1) & mask;
+				hashes[slot] = oldHashes[i];
+				names[slot] = oldNames[i];
+				headers[slot] = oldHeaders[i];
+				sizes[slot] = oldSizes[i];
+			}
+		}
+		
+	}
+	
 	/** Generate headers into the given string. */
 	public void appendTo(IString s) {
+		if (frozen != null) {
+			for (int i = 0; i < frozen.length - 2; ++i)
+				s.append((char)(frozen[i] & 0xFF));
+			return;
+		}
 		for (MimeHeader h : headers)
 			h.appendTo(s);
 	}
@@ -179,9 +636,24 @@ public class MimeHeaders {
 		return this;
 	}
 
-	/** Parse the Content-Type header and return it, or null if it is not present. */
+	private static final BoundedCache<String, ParameterizedHeaderValue> contentTypeCache = new BoundedCache<>(128);
+	
+	/** Return the cache of parsed Content-Type values, by raw value, used by {@link #getContentType()}.
+	 * Its maximum size can be changed, or set to 0 to disable it.
+	 */
+	public static BoundedCache<String, ParameterizedHeaderValue> getContentTypeCache() {
+		return contentTypeCache;
+	}
+	
+	/** Parse the Content-Type header and return it, or null if it is not present.
+	 * The parsing is shared between messages having the same Content-Type, using a copy-on-write value,
+	 * so the returned value can still be modified.
+	 */
 	public ParameterizedHeaderValue getContentType() throws MimeException {
-		return getFirstValue(CONTENT_TYPE, ParameterizedHeaderValue.class);
+		MimeHeader h = getFirst(CONTENT_TYPE);
+		if (h == null)
+			return null;
+		return h.getValue(ParameterizedHeaderValue.class, contentTypeCache, ParameterizedHeaderValue::copy);
 	}
 	
 	/** Parse the Content-Type header and return its main value, or null if it is not present. */
@@ -212,6 +684,98 @@ public class MimeHeaders {
 		s.append("\r\n");
 	}
 	
+	/** Return the number of bytes generated by {@link #generate(ByteBuffer)}.<br/>
+	 * The values of typed headers are serialized to compute their length, and serialized again by the generation:
+	 * {@link #generateBytes()} and {@link #generateByteBuffer()} compute the length and generate in a single pass.
+	 */
+	public int getGeneratedLength() {
+		if (frozen != null)
+			return frozen.length;
+		return getGeneratedLength(generateValues());
+	}
+	
+	private int getGeneratedLength(String[] values) {
+		int len = 2;
+		int i = 0;
+		for (MimeHeader h : headers)
+			len += h.getGeneratedLength(values != null ? values[i++] : null);
+		return len;
+	}
+	
+	/** Generate the values of typed headers, by position, or return null if there is no typed header. */
+	private String[] generateValues() {
+		String[] values = null;
+		int i = 0;
+		for (MimeHeader h : headers) {
+			String generated = h.getGeneratedValue();
+			if (generated != null) {
+				if (values == null)
+					values = new String[headers.size()];
+				values[i] = generated;
+			}
+			i++;
+		}
+		return values;
+	}
+	
+	/** Generate this MimeHeaders, followed by an empty line, into the given buffer which must have at least
+	 * {@link #getGeneratedLength()} remaining bytes.
+	 */
+	public void generate(ByteBuffer buffer) {
+		if (frozen != null) {
+			buffer.put(frozen);
+			return;
+		}
+		generate(buffer, generateValues());
+	}
+	
+	private void generate(ByteBuffer buffer, String[] values) {
+		int i = 0;
+		for (MimeHeader h : headers)
+			h.generate(buffer, values != null ? values[i++] : null);
+		buffer.put((byte)'\r').put((byte)'\n');
+	}
+	
+	/** Generate this MimeHeaders, followed by an empty line, into a new array of the exact size. */
+	public byte[] generateBytes() {
+		if (frozen != null)
+			return Arrays.copyOf(frozen, frozen.length);
+		String[] values = generateValues();
+		byte[] bytes = new byte[getGeneratedLength(values)];
+		generate(ByteBuffer.wrap(bytes), values);
+		return bytes;
+	}
+	
+	/** Generate this MimeHeaders, followed by an empty line, into a buffer of the exact size taken from the ByteArrayCache.
+	 * The buffer is not read-only so the consumer can give it back to the cache once consumed.
+	 * For frozen headers, their generated form is copied into the buffer.
+	 */
+	public ByteBuffer generateByteBuffer() {
+		if (frozen != null) {
+			ByteBuffer buffer = ByteBuffer.wrap(ByteArrayCache.getInstance().get(frozen.length, true));
+			buffer.put(frozen);
+			buffer.flip();
+			return buffer;
+		}
+		String[] values = generateValues();
+		ByteBuffer buffer = ByteBuffer.wrap(ByteArrayCache.getInstance().get(getGeneratedLength(values), true));
+		generate(buffer, values);
+		buffer.flip();
+		return buffer;
+	}
+	
+	/** Give the generated headers, followed by an empty line, to the consumer in a read-only buffer,
+	 * and give the buffer back to the ByteArrayCache once the consumer is done with it.
+	 */
+	public <E extends Exception> IAsync<E> generateTo(AsyncConsumer<ByteBuffer, E> consumer) {
+		if (frozen != null)
+			return consumer.consume(ByteBuffer.wrap(frozen).asReadOnlyBuffer());
+		ByteBuffer buffer = generateByteBuffer();
+		IAsync<E> consume = consumer.consume(buffer.asReadOnlyBuffer());
+		consume.onDone(() -> ByteArrayCache.getInstance().free(buffer));
+		return consume;
+	}
+	
 	/** Create a consumer for headers. */
 	public HeadersConsumer createConsumer() {
 		return new HeadersConsumer();
@@ -224,7 +788,20 @@ public class MimeHeaders {
 	
 	private static final String ERROR_TOO_LONG = "Maximum header length reached";
 	
-	/** Consume bytes to parse headers. */
+	private static Logger consumerLogger = null;
+	
+	private static Logger getConsumerLogger() {
+		Logger logger = consumerLogger;
+		if (logger == null)
+			consumerLogger = logger = LCCore.getApplication().getLoggerFactory().getLogger(HeadersConsumer.class);
+		return logger;
+	}
+	
+	/** Consume bytes to parse headers.
+	 * Names and values are stored in a single bytes block, and each MimeHeader only keeps offsets in this block,
+	 * so strings are created only for the headers which are used.<br/>
+	 * When data is given as a ByteBuffer, names and values are searched 8 bytes at a time, and copied in bulk.
+	 */
 	public class HeadersConsumer implements PartialAsyncConsumer<Bytes.Readable, MimeException> {
 		/** Constructor. */
 		public HeadersConsumer() {
@@ -232,117 +809,194 @@ public class MimeHeaders {
 		}
 		
 		/** Constructor. */
-		@SuppressWarnings("java:S3776") // complexity
 		public HeadersConsumer(int maximumLength) {
-			Logger logger = LCCore.getApplication().getLoggerFactory().getLogger(getClass());
-			newLineConsumer = data -> {
-				while (data.hasRemaining()) {
-					if (maximumLength != -1 && ++length > maximumLength)
-						throw new MimeException(ERROR_TOO_LONG);
-					byte b = data.get();
-					switch (b) {
-					case '\r': break;
-					case '\n':
-						if (name != null) {
-							MimeHeader h = new MimeHeader(name.asString(), value.trim().asString());
-							headers.add(h);
-							if (logger.debug())
-								logger.debug("Header line found: " + h.getName() + ": " + h.getRawValue());
-						}
-						if (logger.debug())
-							logger.debug("End of headers");
-						end = true;
-						return;
-					case ':':
-						throw new MimeException("Empty header name");
-					case ' ': case '\t':
-						if (value == null) throw new MimeException("First header line cannot start with a space");
-						consumer = valueConsumer;
-						consumer.accept(data);
-						return;
-					default:
-						if (name != null) {
-							MimeHeader h = new MimeHeader(name.asString(), value.trim().asString());
-							headers.add(h);
-							if (logger.debug())
-								logger.debug("Header line found: " + h.getName() + ": " + h.getRawValue());
-						}
-						name = new CharArrayString(32);
-						name.append((char)(b & 0xFF));
-						consumer = nameConsumer;
-						consumer.accept(data);
-						return;
-					}
-				}
-			};
-			
-			nameConsumer = data -> {
-				while (data.hasRemaining()) {
-					if (maximumLength != -1 && ++length > maximumLength)
-						throw new MimeException(ERROR_TOO_LONG);
-					byte b = data.get();
-					switch (b) {
-					case ':':
-						value = new CharArrayString(64);
-						consumer = valueConsumer;
-						consumer.accept(data);
-						return;
-					case '\r': break;
-					case '\n':
-						throw new MimeException("Header line must contain a ':' <" + name.asString() + ">");
-					default:
-						name.append((char)(b & 0xFF));
-						break;
-					}
-				}
-			};
-			
-			valueConsumer = data -> {
-				while (data.hasRemaining()) {
-					if (maximumLength != -1 && ++length > maximumLength)
-						throw new MimeException(ERROR_TOO_LONG);
-					byte b = data.get();
-					switch (b) {
-					case '\r': break;
-					case '\n':
-						consumer = newLineConsumer;
-						consumer.accept(data);
-						return;
-					default:
-						value.append((char)(b & 0xFF));
-						break;
-					}
-				}
-			};
-			
-			consumer = newLineConsumer;
+			this.maximumLength = maximumLength;
+			logger = getConsumerLogger();
 		}
 		
+		private static final int STATE_NEW_LINE = 0;
+		private static final int STATE_NAME = 1;
+		private static final int STATE_VALUE = 2;
+		
+		private MimeHeaders target = MimeHeaders.this;
+		private int maximumLength;
+		private Logger logger;
 		private int length = 0;
-		private CharArrayString name;
-		private CharArrayString value;
+		private byte[] block = new byte[512];
+		private int blockPos = 0;
+		private int nameStart = -1;
+		private int nameEnd;
+		private int state = STATE_NEW_LINE;
 		private boolean end = false;
-		private ConsumerThrows<Bytes.Readable, MimeException> consumer;
 		
-		private ConsumerThrows<Bytes.Readable, MimeException> newLineConsumer;
-		private ConsumerThrows<Bytes.Readable, MimeException> nameConsumer;
-		private ConsumerThrows<Bytes.Readable, MimeException> valueConsumer;
+		/** Reset this consumer so it can be reused to parse other headers, which are added to the given MimeHeaders.
+		 * The bytes block referenced by the headers already parsed is not reused.
+		 */
+		public void reset(MimeHeaders headers) {
+			target = headers;
+			length = 0;
+			if (blockPos > 0) {
+				block = new byte[block.length];
+				blockPos = 0;
+			}
+			nameStart = -1;
+			state = STATE_NEW_LINE;
+			end = false;
+		}
+		
+		/** Return the MimeHeaders receiving the parsed headers. */
+		public MimeHeaders getHeaders() {
+			return target;
+		}
 		
 		@Override
 		public AsyncSupplier<Boolean, MimeException> consume(Bytes.Readable data) {
 			try {
-				consumer.accept(data);
+				while (!end && data.hasRemaining()) {
+					addLength(1);
+					consumeByte(data.get());
+				}
+				return new AsyncSupplier<>(Boolean.valueOf(end), null);
+			} catch (MimeException e) {
+				return new AsyncSupplier<>(null, e);
+			}
+		}
+		
+		/** Consume the given data, searching for the end of names and values several bytes at a time.
+		 * On return, the buffer is positioned just after the headers if the end of headers has been reached.
+		 */
+		public AsyncSupplier<Boolean, MimeException> consume(ByteBuffer data) {
+			try {
+				boolean bigEndian = data.order() == ByteOrder.BIG_ENDIAN;
+				while (!end && data.hasRemaining()) {
+					if (state != STATE_NEW_LINE) {
+						int pos = data.position();
+						int stop = scan(data, pos, data.limit(), state == STATE_NAME, bigEndian);
+						int len = stop - pos;
+						if (len > 0) {
+							addLength(len);
+							if (blockPos + len > block.length)
+								block = Arrays.copyOf(block, Math.max(block.length * 2, blockPos + len));
+							data.get(block, blockPos, len);
+							blockPos += len;
+							if (!data.hasRemaining())
+								break;
+						}
+					}
+					addLength(1);
+					consumeByte(data.get());
+				}
 				return new AsyncSupplier<>(Boolean.valueOf(end), null);
 			} catch (MimeException e) {
 				return new AsyncSupplier<>(null, e);
 			}
 		}
 		
+		private void addLength(int len) throws MimeException {
+			if (maximumLength != -1 && (length += len) > maximumLength)
+				throw new MimeException(ERROR_TOO_LONG);
+		}
+		
+		@SuppressWarnings("java:S3776") // complexity
+		private void consumeByte(byte b) throws MimeException {
+			if (b == '\r')
+				return;
+			switch (state) {
+			case STATE_NEW_LINE:
+				switch (b) {
+				case '\n':
+					if (nameStart >= 0)
+						headerFound();
+					if (logger.debug())
+						logger.debug("End of headers");
+					end = true;
+					return;
+				case ':':
+					throw new MimeException("Empty header name");
+				case ' ': case '\t':
+					if (nameStart < 0) throw new MimeException("First header line cannot start with a space");
+					state = STATE_VALUE;
+					return;
+				default:
+					if (nameStart >= 0)
+						headerFound();
+					nameStart = blockPos;
+					write(b);
+					state = STATE_NAME;
+					return;
+				}
+			case STATE_NAME:
+				if (b == ':') {
+					nameEnd = blockPos;
+					state = STATE_VALUE;
+				} else if (b == '\n') {
+					throw new MimeException("Header line must contain a ':' <"
+						+ new String(block, nameStart, blockPos - nameStart, StandardCharsets.ISO_8859_1) + ">");
+				} else {
+					write(b);
+				}
+				return;
+			default: // value
+				if (b == '\n')
+					state = STATE_NEW_LINE;
+				else
+					write(b);
+				return;
+			}
+		}
+		
+		private void write(byte b) {
+			if (blockPos == block.length)
+				block = Arrays.copyOf(block, block.length * 2);
+			block[blockPos++] = b;
+		}
+		
+		private void headerFound() {
+			int valueStart = nameEnd;
+			int valueEnd = blockPos;
+			while (valueStart < valueEnd && (block[valueStart] & 0xFF) <= ' ') valueStart++;
+			while (valueEnd > valueStart && (block[valueEnd - 1] & 0xFF) <= ' ') valueEnd--;
+			MimeHeader h = new MimeHeader(
+				MimeHeaderName.find(block, nameStart, nameEnd), block, nameStart, nameEnd, valueStart, valueEnd);
+			target.add(h);
+			if (logger.debug())
+				logger.debug("Header line found: " + h.getName() + ": " + h.getRawValue());
+		}
+		
 		@Override
 		public boolean isExpectingData() {
 			return !end;
 		}
 		
 	}
+	
+	private static final long ONES_7F = 0x7F7F7F7F7F7F7F7FL;
+	private static final long PATTERN_LF = 0x0A0A0A0A0A0A0A0AL;
+	private static final long PATTERN_CR = 0x0D0D0D0D0D0D0D0DL;
+	private static final long PATTERN_COLON = 0x3A3A3A3A3A3A3A3AL;
+	
+	/** Return a long having the high bit set in each byte which is zero in the given long, and only in those bytes. */
+	private static long zeroBytes(long l) {
+		return ~(((l & ONES_7F) + ONES_7F) | l | ONES_7F);
+	}
+	
+	/** Return the index of the first CR or LF (or colon if requested) between start and end, or end if none is found. */
+	static int scan(ByteBuffer data, int start, int end, boolean colon, boolean bigEndian) {
+		int i = start;
+		for (; i + 8 <= end; i += 8) {
+			long l = data.getLong(i);
+			long found = zeroBytes(l ^ PATTERN_LF) | zeroBytes(l ^ PATTERN_CR);
+			if (colon)
+				found |= zeroBytes(l ^ PATTERN_COLON);
+			if (found != 0)
+				return i + ((bigEndian ? Long.numberOfLeadingZeros(found) : Long.numberOfTrailingZeros(found)) >>> 3);
+		}
+		for (; i < end; ++i) {
+			byte b = data.get(i);
+			if (b == '\n' || b == '\r' || (colon && b == ':'))
+				return i;
+		}
+		return end;
+	}
 
 }
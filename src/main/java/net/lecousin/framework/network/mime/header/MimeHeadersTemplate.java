@@ -0,0 +1,182 @@
+package net.lecousin.framework.network.mime.header;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.lecousin.framework.network.mime.MimeUtil;
+
+/**
+ * Headers having always the same names, and whose values are static except for some slots.
+ * The static parts are generated once into byte arrays, and for each message the slots are filled
+ * to get the headers as buffers, without creating any MimeHeader.
+ * <p>
+ * Example:
+ * <pre>
+ * MimeHeadersTemplate template = new MimeHeadersTemplate()
+ *     .add("Content-Type", "application/octet-stream")
+ *     .addSlot(MimeHeaders.CONTENT_LENGTH, "length")
+ *     .addSlot(MimeHeaders.CONTENT_DISPOSITION, "attachment; filename=", "filename", "");
+ * ByteBuffer[] headers = template.newValues().set("length", size).setEncoded("filename", name).toByteBuffers();
+ * </pre>
+ * Once values have been created, the template cannot be modified anymore.
+ */
+public final class MimeHeadersTemplate {
+
+	private ArrayList<byte[]> segments = new ArrayList<>();
+	private ArrayList<String> slots = new ArrayList<>();
+	private StringBuilder current = new StringBuilder(256);
+	private ByteBuffer[] compiled = null;
+
+	/** Append a header with a static value. */
+	public MimeHeadersTemplate add(String name, String rawValue) {
+		checkNotCompiled();
+		current.append(MimeHeaderName.of(name).getPrefix()).append(rawValue).append("\r\n");
+		return this;
+	}
+
+	/** Append a header with a static value. */
+	public MimeHeadersTemplate add(String name, HeaderValueFormat value) {
+		return add(new MimeHeader(name, value));
+	}
+
+	/** Append a header with a static value. */
+	public MimeHeadersTemplate add(MimeHeader header) {
+		return add(new MimeHeaders(header));
+	}
+
+	/** Append the given headers, with static values. */
+	public MimeHeadersTemplate add(MimeHeaders headers) {
+		checkNotCompiled();
+		byte[] bytes = headers.generateBytes();
+		// without the final empty line
+		for (int i = 0; i < bytes.length - 2; ++i)
+			current.append((char)(bytes[i] & 0xFF));
+		return this;
+	}
+
+	/** Append a header whose value is given by the slot. */
+	public MimeHeadersTemplate addSlot(String name, String slot) {
+		return addSlot(name, "", slot, "");
+	}
+
+	/** Append a header whose value is composed of a static part, the slot, and another static part. */
+	public MimeHeadersTemplate addSlot(String name, String before, String slot, String after) {
+		checkNotCompiled();
+		if (slots.contains(slot))
+			throw new IllegalArgumentException("Slot " + slot + " already exists");
+		current.append(MimeHeaderName.of(name).getPrefix()).append(before);
+		segments.add(current.toString().getBytes(StandardCharsets.ISO_8859_1));
+		current.setLength(0);
+		slots.add(slot);
+		current.append(after).append("\r\n");
+		return this;
+	}
+
+	/** Return the names of the slots, in order. */
+	public List<String> getSlots() {
+		return Collections.unmodifiableList(slots);
+	}
+
+	private void checkNotCompiled() {
+		if (compiled != null)
+			throw new IllegalStateException("Template already in use");
+	}
+
+	private synchronized ByteBuffer[] compile() {
+		if (compiled == null) {
+			current.append("\r\n");
+			segments.add(current.toString().getBytes(StandardCharsets.ISO_8859_1));
+			current = null;
+			ByteBuffer[] buffers = new ByteBuffer[segments.size()];
+			for (int i = 0; i < buffers.length; ++i)
+				buffers[i] = ByteBuffer.wrap(segments.get(i)).asReadOnlyBuffer();
+			compiled = buffers;
+		}
+		return compiled;
+	}
+
+	/** Create a new set of values to fill the slots. */
+	public Values newValues() {
+		return new Values(compile());
+	}
+
+	/** Values of the slots, which can be reused for several messages. */
+	public final class Values {
+
+		private Values(ByteBuffer[] staticParts) {
+			this.staticParts = staticParts;
+			this.values = new byte[staticParts.length - 1][];
+		}
+
+		private ByteBuffer[] staticParts;
+		private byte[][] values;
+
+		private int getSlot(String slot) {
+			int i = slots.indexOf(slot);
+			if (i < 0)
+				throw new IllegalArgumentException("Unknown slot " + slot);
+			return i;
+		}
+
+		/** Set the raw value of a slot. */
+		public Values set(String slot, String rawValue) {
+			values[getSlot(slot)] = rawValue.getBytes(StandardCharsets.ISO_8859_1);
+			return this;
+		}
+
+		/** Set a numeric value of a slot. */
+		public Values set(String slot, long value) {
+			values[getSlot(slot)] = Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+			return this;
+		}
+
+		/** Set the value of a slot, which is encoded using {@link MimeUtil#encodeHeaderValueWithUTF8(String)}. */
+		public Values setEncoded(String slot, String value) {
+			return set(slot, MimeUtil.encodeHeaderValueWithUTF8(value));
+		}
+
+		/** Return the number of bytes of the headers. */
+		public int getGeneratedLength() {
+			int len = 0;
+			for (ByteBuffer b : staticParts)
+				len += b.remaining();
+			for (int i = 0; i < values.length; ++i)
+				len += checkValue(i).length;
+			return len;
+		}
+
+		private byte[] checkValue(int i) {
+			byte[] value = values[i];
+			if (value == null)
+				throw new IllegalStateException("Slot " + slots.get(i) + " is not set");
+			return value;
+		}
+
+		/** Return the headers, followed by an empty line, as a list of buffers.
+		 * Buffers for static parts are read-only, and are shared with other messages.
+		 */
+		public ByteBuffer[] toByteBuffers() {
+			ByteBuffer[] buffers = new ByteBuffer[staticParts.length + values.length];
+			for (int i = 0; i < values.length; ++i) {
+				buffers[i * 2] = staticParts[i].duplicate();
+				buffers[i * 2 + 1] = ByteBuffer.wrap(checkValue(i));
+			}
+			buffers[buffers.length - 1] = staticParts[values.length].duplicate();
+			return buffers;
+		}
+
+		/** Generate the headers, followed by an empty line, into the given buffer. */
+		public void generate(ByteBuffer buffer) {
+			for (int i = 0; i < values.length; ++i) {
+				buffer.put(staticParts[i].duplicate());
+				buffer.put(checkValue(i));
+			}
+			buffer.put(staticParts[values.length].duplicate());
+		}
+
+	}
+
+}
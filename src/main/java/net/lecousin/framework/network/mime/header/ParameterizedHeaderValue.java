@@ -1,10 +1,12 @@
 package net.lecousin.framework.network.mime.header;
 
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
 import net.lecousin.framework.network.mime.MimeException;
 import net.lecousin.framework.network.mime.MimeUtil;
+import net.lecousin.framework.network.mime.header.parser.MimeHeaderValueLexer;
 import net.lecousin.framework.network.mime.header.parser.SpecialCharacter;
 import net.lecousin.framework.network.mime.header.parser.Token;
 import net.lecousin.framework.network.mime.header.parser.Word;
@@ -31,12 +33,44 @@ public class ParameterizedHeaderValue implements HeaderValueFormat {
 	
 	private String mainValue;
 	private List<Pair<String, String>> parameters = new LinkedList<>();
+	/** True if the parameters are shared with a copy, and must be copied before being modified. */
+	private boolean shared = false;
+	
+	/** Return a copy of this value. The parameters are shared until one of the instances modifies them. */
+	public ParameterizedHeaderValue copy() {
+		ParameterizedHeaderValue copy = new ParameterizedHeaderValue();
+		copy.mainValue = mainValue;
+		copy.parameters = parameters;
+		copy.shared = true;
+		if (!shared)
+			shared = true;
+		return copy;
+	}
+	
+	private void beforeModification() {
+		if (!shared)
+			return;
+		List<Pair<String, String>> list = new LinkedList<>();
+		for (Pair<String, String> p : parameters)
+			list.add(new Pair<>(p.getValue1(), p.getValue2()));
+		parameters = list;
+		shared = false;
+	}
 	
 	public String getMainValue() {
 		return mainValue;
 	}
 	
+	/** Return a read-only view of the parameters, without copying them if they are shared.
+	 * The pairs must not be modified, the setters or {@link #getModifiableParameters()} must be used instead.
+	 */
 	public List<Pair<String, String>> getParameters() {
+		return Collections.unmodifiableList(parameters);
+	}
+	
+	/** Return the list of parameters, which can be modified, copying it first if it is shared. */
+	public List<Pair<String, String>> getModifiableParameters() {
+		beforeModification();
 		return parameters;
 	}
 	
@@ -62,11 +96,13 @@ public class ParameterizedHeaderValue implements HeaderValueFormat {
 	
 	/** Add a parameter. */
 	public void addParameter(String name, String value) {
+		beforeModification();
 		parameters.add(new Pair<>(name, value));
 	}
 	
 	/** Set a parameter. */
 	public void setParameter(String name, String value) {
+		beforeModification();
 		for (Pair<String, String> p : parameters)
 			if (p.getValue1().equals(name)) {
 				p.setValue2(value);
@@ -77,6 +113,7 @@ public class ParameterizedHeaderValue implements HeaderValueFormat {
 	
 	/** Set a parameter ignoring parameter name case. */
 	public void setParameterIgnoreCase(String name, String value) {
+		beforeModification();
 		for (Pair<String, String> p : parameters)
 			if (p.getValue1().equalsIgnoreCase(name)) {
 				p.setValue2(value);
@@ -85,30 +122,77 @@ public class ParameterizedHeaderValue implements HeaderValueFormat {
 		parameters.add(new Pair<>(name, value));
 	}
 	
+	@Override
+	public void parseRawValue(String raw) throws MimeException {
+		parseRawValue(raw, 0, raw.length());
+	}
+	
+	@Override
+	public void parseRawValue(CharSequence raw, int start, int end) throws MimeException {
+		reset();
+		MimeHeaderValueLexer lexer = new MimeHeaderValueLexer(raw, start, end);
+		StringBuilder s = new StringBuilder(end - start);
+		do {
+			s.setLength(0);
+			if (lexer.appendTrimmedSegment(';', s, true) > 0)
+				parseParameter(s.toString());
+		} while (lexer.getKind() != MimeHeaderValueLexer.Kind.END);
+	}
+	
 	@Override
 	public void parseTokens(List<Token> tokens) throws MimeException {
-		mainValue = null;
-		parameters.clear();
+		reset();
 		List<List<Token>> params = Token.splitBySpecialCharacter(tokens, ';');
 		for (List<Token> param : params) {
 			Token.trim(param);
 			Token.removeComments(param);
 			CharArrayString s = new CharArrayString(Token.textLength(param));
 			Token.asText(param, s);
-			int i = s.indexOf('=');
-			try {
-				if (i >= 0) {
-					String name = s.substring(0, i).trim().asString();
-					String value = MimeUtil.decodeRFC2047(s.substring(i + 1).asString());
-					parameters.add(new Pair<>(name, value));
-				} else if (mainValue == null) {
-					mainValue = MimeUtil.decodeRFC2047(s.asString());
-				} else {
-					parameters.add(new Pair<>(s.asString(), ""));
+			parseParameter(s.asString());
+		}
+	}
+	
+	/** Return the main value from the given raw value, without parsing the parameters. */
+	static String parseMainValue(CharSequence raw, int start, int end) throws MimeException {
+		MimeHeaderValueLexer lexer = new MimeHeaderValueLexer(raw, start, end);
+		StringBuilder s = new StringBuilder(end - start);
+		do {
+			s.setLength(0);
+			if (lexer.appendTrimmedSegment(';', s, true) > 0 && s.indexOf("=") < 0) {
+				try {
+					return MimeUtil.decodeRFC2047(s.toString());
+				} catch (Exception e) {
+					throw new MimeException("Error decoding RFC2047 value", e);
 				}
-			} catch (Exception e) {
-				throw new MimeException("Error decoding RFC2047 value", e);
 			}
+		} while (lexer.getKind() != MimeHeaderValueLexer.Kind.END);
+		return null;
+	}
+	
+	private void reset() {
+		mainValue = null;
+		if (shared) {
+			parameters = new LinkedList<>();
+			shared = false;
+		} else {
+			parameters.clear();
+		}
+	}
+	
+	private void parseParameter(String s) throws MimeException {
+		int i = s.indexOf('=');
+		try {
+			if (i >= 0) {
+				String name = s.substring(0, i).trim();
+				String value = MimeUtil.decodeRFC2047(s.substring(i + 1));
+				parameters.add(new Pair<>(name, value));
+			} else if (mainValue == null) {
+				mainValue = MimeUtil.decodeRFC2047(s);
+			} else {
+				parameters.add(new Pair<>(s, ""));
+			}
+		} catch (Exception e) {
+			throw new MimeException("Error decoding RFC2047 value", e);
 		}
 	}
 	
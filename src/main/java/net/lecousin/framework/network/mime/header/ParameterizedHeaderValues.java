@@ -1,10 +1,34 @@
 package net.lecousin.framework.network.mime.header;
 
+import net.lecousin.framework.network.mime.MimeException;
+
 /**
  * Comma separated list of parameterized header values.
  */
 public class ParameterizedHeaderValues extends HeaderValues<ParameterizedHeaderValue> {
 
+	/** Return the main value of the value at the given index, without parsing its parameters if not yet done. */
+	public synchronized String mainValueAt(int index) throws MimeException {
+		ParameterizedHeaderValue v = getParsed(index);
+		if (v != null)
+			return v.getMainValue();
+		return ParameterizedHeaderValue.parseMainValue(getRaw(), getRawStart(index), getRawEnd(index));
+	}
+	
+	/** Return the main value of the last value, or null if there is no value. */
+	public synchronized String lastMainValue() throws MimeException {
+		int size = size();
+		return size == 0 ? null : mainValueAt(size - 1);
+	}
+	
+	/** Return true if a value has the given main value, without parsing the parameters of the values not yet parsed. */
+	public synchronized boolean containsMainValue(String value) throws MimeException {
+		for (int i = size() - 1; i >= 0; --i)
+			if (value.equals(mainValueAt(i)))
+				return true;
+		return false;
+	}
+	
 	/** Return the value having the given main value. */
 	public ParameterizedHeaderValue getMainValue(String value) {
 		for (ParameterizedHeaderValue v : getValues())
@@ -23,4 +47,13 @@ public class ParameterizedHeaderValues extends HeaderValues<ParameterizedHeaderV
 		return new ParameterizedHeaderValue();
 	}
 	
+	@Override
+	protected boolean canParseLazily(CharSequence raw, int start, int end) {
+		// only encoded words can make the parsing fail
+		for (int i = start; i < end - 1; ++i)
+			if (raw.charAt(i) == '=' && raw.charAt(i + 1) == '?')
+				return false;
+		return true;
+	}
+	
 }
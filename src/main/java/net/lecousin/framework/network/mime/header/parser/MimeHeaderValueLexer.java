@@ -0,0 +1,343 @@
+package net.lecousin.framework.network.mime.header.parser;
+
+/**
+ * Pull parser of a header value: a cursor moving from token to token, giving the kind and offsets of the current token,
+ * without creating any object.
+ * It produces the same tokens as {@link MimeHeaderValueParser}: a word may contain quoted strings and escaped characters,
+ * consecutive spaces are a single space token, and comments, domain literals and addresses are a single token whose
+ * content can be read using {@link #content()}.
+ */
+public final class MimeHeaderValueLexer {
+
+	/** Kind of token. */
+	public enum Kind {
+		END, WORD, SPACE, SPECIAL, COMMENT, DOMAIN_LITERAL, ADDRESS
+	}
+
+	/** Constructor. */
+	public MimeHeaderValueLexer(CharSequence value) {
+		this(value, 0, value.length());
+	}
+
+	/** Constructor to read the value between the given offsets. */
+	public MimeHeaderValueLexer(CharSequence value, int start, int end) {
+		this(value, start, end, (char)0);
+	}
+
+	private MimeHeaderValueLexer(CharSequence value, int start, int end, char endChar) {
+		this.value = value;
+		this.pos = start;
+		this.limit = end;
+		this.endChar = endChar;
+	}
+
+	private CharSequence value;
+	private int limit;
+	private char endChar;
+	private int pos;
+	private Kind kind;
+	private int tokenStart;
+	private int tokenEnd;
+	private int contentStart;
+	private int contentEnd;
+	private boolean plainWord;
+
+	/** Move to the next token and return its kind. */
+	public Kind next() {
+		while (pos < limit) {
+			tokenStart = pos;
+			char c = value.charAt(pos);
+			if (c == endChar)
+				break;
+			switch (c) {
+			case ' ':
+			case '\t':
+				do {
+					pos++;
+				} while (pos < limit && ((c = value.charAt(pos)) == ' ' || c == '\t'));
+				return token(Kind.SPACE);
+			case '(':
+				return group(Kind.COMMENT, ')');
+			case '[':
+				return group(Kind.DOMAIN_LITERAL, ']');
+			case '<':
+				return group(Kind.ADDRESS, '>');
+			case '@':
+			case ',':
+			case ';':
+			case ':':
+			case '.':
+				pos++;
+				return token(Kind.SPECIAL);
+			case '\\':
+				if (pos + 1 == limit || value.charAt(pos + 1) == endChar) {
+					// nothing to escape
+					pos++;
+					continue;
+				}
+				return word();
+			default:
+				return word();
+			}
+		}
+		tokenStart = pos;
+		tokenEnd = pos;
+		kind = Kind.END;
+		return kind;
+	}
+
+	private Kind token(Kind k) {
+		tokenEnd = pos;
+		contentStart = tokenStart;
+		contentEnd = pos;
+		kind = k;
+		return k;
+	}
+
+	private Kind group(Kind k, char close) {
+		contentStart = pos + 1;
+		contentEnd = skip(value, contentStart, limit, close);
+		pos = contentEnd < limit ? contentEnd + 1 : limit;
+		tokenEnd = pos;
+		kind = k;
+		return k;
+	}
+
+	private Kind word() {
+		boolean escape = false;
+		plainWord = true;
+		while (pos < limit) {
+			char c = value.charAt(pos);
+			if (c == endChar)
+				break;
+			if (escape) {
+				escape = false;
+				pos++;
+				continue;
+			}
+			switch (c) {
+			case '"':
+				plainWord = false;
+				pos = skipString(value, pos, limit);
+				if (pos < limit) pos++;
+				continue;
+			case '\\':
+				plainWord = false;
+				escape = true;
+				pos++;
+				continue;
+			case ' ':
+			case '\t':
+			case '(':
+			case '[':
+			case '<':
+			case '@':
+			case ',':
+			case ';':
+			case ':':
+			case '.':
+				return token(Kind.WORD);
+			default:
+				pos++;
+			}
+		}
+		return token(Kind.WORD);
+	}
+
+	/** Return the index of the end character, or the limit, skipping quoted strings, escaped characters and groups. */
+	private static int skip(CharSequence value, int i, int limit, char end) {
+		boolean escape = false;
+		for (; i < limit; ++i) {
+			char c = value.charAt(i);
+			if (c == end)
+				return i;
+			if (escape) {
+				escape = false;
+				continue;
+			}
+			switch (c) {
+			case '"': i = skipString(value, i, limit); break;
+			case '\\': escape = true; break;
+			case '(': i = skip(value, i + 1, limit, ')'); break;
+			case '[': i = skip(value, i + 1, limit, ']'); break;
+			case '<': i = skip(value, i + 1, limit, '>'); break;
+			default: break;
+			}
+		}
+		return limit;
+	}
+
+	/** Return the index of the closing quote, or the limit. */
+	private static int skipString(CharSequence value, int i, int limit) {
+		boolean escape = false;
+		for (int j = i + 1; j < limit; ++j) {
+			char c = value.charAt(j);
+			if (escape)
+				escape = false;
+			else if (c == '\\')
+				escape = true;
+			else if (c == '"')
+				return j;
+		}
+		return limit;
+	}
+
+	/** Return the kind of the current token, or null if {@link #next()} has not yet been called. */
+	public Kind getKind() {
+		return kind;
+	}
+
+	/** Return the offset of the first character of the current token. */
+	public int getStart() {
+		return tokenStart;
+	}
+
+	/** Return the offset after the last character of the current token, including the closing character of a group. */
+	public int getEnd() {
+		return tokenEnd;
+	}
+
+	/** Return the offset of the content of the current token, which is after the opening character of a group. */
+	public int getContentStart() {
+		return contentStart;
+	}
+
+	/** Return the offset after the content of the current token, which is the closing character of a group. */
+	public int getContentEnd() {
+		return contentEnd;
+	}
+
+	/** Return true if the current token is the given special character. */
+	public boolean isSpecial(char c) {
+		return kind == Kind.SPECIAL && value.charAt(tokenStart) == c;
+	}
+
+	/** Return a lexer on the content of the current comment, domain literal or address. */
+	public MimeHeaderValueLexer content() {
+		char close;
+		switch (kind) {
+		case COMMENT: close = ')'; break;
+		case DOMAIN_LITERAL: close = ']'; break;
+		case ADDRESS: close = '>'; break;
+		default: throw new IllegalStateException("Current token has no content: " + kind);
+		}
+		return new MimeHeaderValueLexer(value, contentStart, contentEnd, close);
+	}
+
+	/** Return the text of the current token. */
+	public String getText() {
+		if (kind == Kind.WORD && plainWord)
+			return value.subSequence(tokenStart, tokenEnd).toString();
+		StringBuilder s = new StringBuilder(tokenEnd - tokenStart);
+		appendText(s);
+		return s.toString();
+	}
+
+	/** Append the text of the current token, as {@link Token#asText(net.lecousin.framework.text.IString)} does. */
+	public void appendText(StringBuilder s) {
+		switch (kind) {
+		case WORD:
+			if (plainWord)
+				s.append(value, tokenStart, tokenEnd);
+			else
+				appendWord(s);
+			break;
+		case SPACE:
+			s.append(' ');
+			break;
+		case SPECIAL:
+			s.append(value.charAt(tokenStart));
+			break;
+		case COMMENT:
+			appendGroup(s, '(', ')');
+			break;
+		case DOMAIN_LITERAL:
+			appendGroup(s, '[', ']');
+			break;
+		case ADDRESS:
+			appendGroup(s, '<', '>');
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void appendWord(StringBuilder s) {
+		boolean escape = false;
+		for (int i = tokenStart; i < tokenEnd; ++i) {
+			char c = value.charAt(i);
+			if (escape) {
+				s.append(c);
+				escape = false;
+			} else if (c == '\\') {
+				escape = true;
+			} else if (c == '"') {
+				boolean escapeInString = false;
+				while (++i < tokenEnd) {
+					c = value.charAt(i);
+					if (escapeInString) {
+						s.append(c);
+						escapeInString = false;
+					} else if (c == '\\') {
+						escapeInString = true;
+					} else if (c == '"') {
+						break;
+					} else {
+						s.append(c);
+					}
+				}
+			} else {
+				s.append(c);
+			}
+		}
+	}
+
+	private void appendGroup(StringBuilder s, char open, char close) {
+		s.append(open);
+		content().appendAll(s);
+		s.append(close);
+	}
+
+	/** Read all remaining tokens and append their text. */
+	public void appendAll(StringBuilder s) {
+		while (next() != Kind.END)
+			appendText(s);
+	}
+
+	/** Read tokens until the given special character or the end, and return the number of tokens read.
+	 * The special character, if found, is the current token.
+	 */
+	public int skipSegment(char delimiter) {
+		int nb = 0;
+		while (next() != Kind.END && !isSpecial(delimiter))
+			nb++;
+		return nb;
+	}
+
+	/**
+	 * Read tokens until the given special character or the end, append their text without the leading and trailing
+	 * spaces, and return the number of tokens read. The special character, if found, is the current token.
+	 * If removeComments is true, comments are not appended but they are taken into account to determine
+	 * which spaces are leading or trailing, like {@link Token#trim(java.util.List)} followed by
+	 * {@link Token#removeComments(java.util.List)}.
+	 */
+	public int appendTrimmedSegment(char delimiter, StringBuilder s, boolean removeComments) {
+		int nb = 0;
+		int spaces = 0;
+		boolean started = false;
+		while (next() != Kind.END && !isSpecial(delimiter)) {
+			nb++;
+			if (kind == Kind.SPACE) {
+				if (started) spaces++;
+				continue;
+			}
+			for (; spaces > 0; spaces--)
+				s.append(' ');
+			started = true;
+			if (!removeComments || kind != Kind.COMMENT)
+				appendText(s);
+		}
+		return nb;
+	}
+
+}
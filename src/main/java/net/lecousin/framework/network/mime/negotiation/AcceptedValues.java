@@ -0,0 +1,232 @@
+package net.lecousin.framework.network.mime.negotiation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import net.lecousin.framework.network.mime.MimeException;
+import net.lecousin.framework.network.mime.header.ParameterizedHeaderValue;
+import net.lecousin.framework.network.mime.header.ParameterizedHeaderValues;
+import net.lecousin.framework.util.Pair;
+
+/**
+ * Parsed value of an Accept, Accept-Charset, Accept-Encoding or Accept-Language header.
+ * The ranges are sorted by decreasing quality, then decreasing specificity, then in the order of the header.
+ * A range with an invalid quality is ignored.
+ * Values which are not media types are matched using the basic filtering of RFC 4647, so the language range
+ * en matches en and en-US.
+ * Instances are immutable so they can be shared.
+ */
+public final class AcceptedValues {
+	
+	/** Maximum quality, corresponding to q=1. */
+	public static final int MAX_QUALITY = 1000;
+
+	private AcceptedValues(List<Range> ranges) {
+		this.ranges = ranges;
+	}
+	
+	private final List<Range> ranges;
+	
+	/** Parse the value of an Accept-style header. */
+	public static AcceptedValues parse(String raw) throws MimeException {
+		ParameterizedHeaderValues values = new ParameterizedHeaderValues();
+		values.parseRawValue(raw);
+		ArrayList<Range> list = new ArrayList<>(values.size());
+		for (int i = 0; i < values.size(); ++i) {
+			ParameterizedHeaderValue value = values.get(i);
+			if (value.getMainValue() == null || value.getMainValue().isEmpty())
+				continue;
+			Range range = Range.parse(value);
+			if (range.quality >= 0)
+				list.add(range);
+		}
+		// stable sort, so the order of the header is kept for equal ranges
+		list.sort((r1, r2) -> {
+			if (r1.quality != r2.quality)
+				return r2.quality - r1.quality;
+			return r2.getSpecificity() - r1.getSpecificity();
+		});
+		list.trimToSize();
+		return new AcceptedValues(Collections.unmodifiableList(list));
+	}
+	
+	/** Return the ranges, sorted by decreasing quality then decreasing specificity. */
+	public List<Range> getRanges() {
+		return ranges;
+	}
+	
+	public boolean isEmpty() {
+		return ranges.isEmpty();
+	}
+	
+	/** Return the quality, from 0 to {@link #MAX_QUALITY}, of the given value (for example text/html or gzip),
+	 * given by the most specific range matching it, or 0 if no range matches it.
+	 */
+	public int getQuality(String value) {
+		return getQuality(Range.parse(value));
+	}
+	
+	/** Return the quality, from 0 to {@link #MAX_QUALITY}, of the given value, given by the most specific range matching it,
+	 * or 0 if no range matches it.
+	 */
+	public int getQuality(Range value) {
+		Range best = null;
+		for (Range r : ranges)
+			if (r.matches(value) && (best == null || r.getSpecificity() > best.getSpecificity()))
+				best = r;
+		return best != null ? best.quality : 0;
+	}
+	
+	/** A value or range of values, with its quality. */
+	public static final class Range {
+		
+		private Range(String type, String subtype, List<Pair<String, String>> parameters, int quality) {
+			this.type = type;
+			this.subtype = subtype;
+			this.parameters = parameters;
+			this.quality = quality;
+		}
+		
+		private final String type;
+		private final String subtype;
+		private final List<Pair<String, String>> parameters;
+		private final int quality;
+		
+		/** Parse a value or range, such as text/html, text/*, gzip or *, with optional parameters. */
+		public static Range parse(String value) {
+			ParameterizedHeaderValue v = new ParameterizedHeaderValue();
+			try {
+				v.parseRawValue(value);
+			} catch (MimeException e) {
+				// keep the value as is
+				return parse(value, Collections.emptyList());
+			}
+			return parse(v);
+		}
+		
+		private static Range parse(ParameterizedHeaderValue value) {
+			return parse(value.getMainValue() != null ? value.getMainValue() : "", value.getParameters());
+		}
+		
+		private static Range parse(String main, List<Pair<String, String>> params) {
+			String type = main.trim().toLowerCase(Locale.US);
+			String subtype = null;
+			int i = type.indexOf('/');
+			if (i >= 0) {
+				subtype = type.substring(i + 1).trim();
+				type = type.substring(0, i).trim();
+			}
+			List<Pair<String, String>> parameters = null;
+			int quality = MAX_QUALITY;
+			for (Pair<String, String> p : params) {
+				if ("q".equalsIgnoreCase(p.getValue1())) {
+					quality = parseQuality(p.getValue2());
+					// parameters after the quality are extensions, not part of the range
+					break;
+				}
+				if (parameters == null)
+					parameters = new ArrayList<>(params.size());
+				parameters.add(p);
+			}
+			return new Range(type, subtype, parameters != null ? parameters : Collections.emptyList(), quality);
+		}
+		
+		/** Parse a quality value as a number of thousandths, or return -1 if the value is invalid. */
+		static int parseQuality(String s) {
+			s = s.trim();
+			int len = s.length();
+			if (len == 0 || len > 5 || (len > 1 && s.charAt(1) != '.'))
+				return -1;
+			char c = s.charAt(0);
+			if (c != '0' && c != '1')
+				return -1;
+			int q = (c - '0') * MAX_QUALITY;
+			int factor = 100;
+			for (int i = 2; i < len; ++i, factor /= 10) {
+				c = s.charAt(i);
+				if (c < '0' || c > '9')
+					return -1;
+				q += (c - '0') * factor;
+			}
+			return q > MAX_QUALITY ? -1 : q;
+		}
+		
+		/** Return the type in lower case, or * for any type. */
+		public String getType() {
+			return type;
+		}
+		
+		/** Return the sub-type in lower case, * for any sub-type, or null if this is not a media type. */
+		public String getSubType() {
+			return subtype;
+		}
+		
+		public List<Pair<String, String>> getParameters() {
+			return Collections.unmodifiableList(parameters);
+		}
+		
+		/** Return the quality from 0 to {@link #MAX_QUALITY}, or -1 if the quality given is invalid. */
+		public int getQuality() {
+			return quality;
+		}
+		
+		/** Return the value without parameters, such as text/html or gzip. */
+		public String getValue() {
+			return subtype != null ? type + '/' + subtype : type;
+		}
+		
+		/** Return 0 for any value, 1 for a media range with any sub-type, 2 for a specific value,
+		 * plus the number of parameters, plus the number of additional sub-tags for a value which is not a media type.
+		 */
+		public int getSpecificity() {
+			if ("*".equals(type))
+				return 0;
+			if ("*".equals(subtype))
+				return 1;
+			int specificity = 2 + parameters.size();
+			if (subtype == null)
+				for (int i = type.indexOf('-'); i > 0; i = type.indexOf('-', i + 1))
+					specificity++;
+			return specificity;
+		}
+		
+		/** Return true if the given value is part of this range.
+		 * A value which is not a media type is part of the range if it is equal to the range, or if the range
+		 * is a prefix of it followed by a '-' (basic filtering of RFC 4647).
+		 */
+		public boolean matches(Range value) {
+			if ("*".equals(type))
+				return true;
+			if (!type.equals(value.type) && (subtype != null || value.subtype != null
+				|| !value.type.startsWith(type) || value.type.charAt(type.length()) != '-'))
+				return false;
+			if (!"*".equals(subtype) && (subtype == null ? value.subtype != null : !subtype.equals(value.subtype)))
+				return false;
+			for (Pair<String, String> p : parameters) {
+				boolean found = false;
+				for (Pair<String, String> vp : value.parameters)
+					if (p.getValue1().equalsIgnoreCase(vp.getValue1()) && p.getValue2().equalsIgnoreCase(vp.getValue2())) {
+						found = true;
+						break;
+					}
+				if (!found)
+					return false;
+			}
+			return true;
+		}
+		
+		@Override
+		public String toString() {
+			StringBuilder s = new StringBuilder(getValue());
+			for (Pair<String, String> p : parameters)
+				s.append(';').append(p.getValue1()).append('=').append(p.getValue2());
+			if (quality >= 0 && quality != MAX_QUALITY)
+				s.append(";q=").append(quality / 1000).append('.').append(String.format("%03d", quality % 1000));
+			return s.toString();
+		}
+		
+	}
+	
+}
@@ -0,0 +1,89 @@
+package net.lecousin.framework.network.mime.negotiation;
+
+import net.lecousin.framework.network.mime.BoundedCache;
+import net.lecousin.framework.network.mime.MimeException;
+import net.lecousin.framework.network.mime.header.MimeHeaders;
+
+/**
+ * Select the best variant among the ones available, based on an Accept-style header.
+ * The variants are parsed once, and the decision is cached by raw header value,
+ * because clients send most of the time the same few headers.
+ * <br/>
+ * Example:
+ * <pre>
+ * ContentNegotiator negotiator = new ContentNegotiator("application/json", "text/html");
+ * String type = negotiator.select(request.getHeaders(), "Accept");
+ * </pre>
+ */
+public class ContentNegotiator {
+
+	/** Constructor with the available variants, in order of preference of the server. */
+	public ContentNegotiator(String... variants) {
+		if (variants.length == 0)
+			throw new IllegalArgumentException("At least one variant must be given");
+		this.variants = variants.clone();
+		compiled = new AcceptedValues.Range[variants.length];
+		for (int i = 0; i < variants.length; ++i)
+			compiled[i] = AcceptedValues.Range.parse(variants[i]);
+	}
+	
+	private static final Integer NONE = Integer.valueOf(-1);
+	
+	private final String[] variants;
+	private final AcceptedValues.Range[] compiled;
+	private final BoundedCache<String, Integer> cache = new BoundedCache<>(64);
+	
+	/** Return the cache of decisions by raw header value. Its maximum size can be changed, or set to 0 to disable it. */
+	public BoundedCache<String, Integer> getCache() {
+		return cache;
+	}
+	
+	/** Select the best variant based on the first header with the given name, or null if no variant is acceptable. */
+	public String select(MimeHeaders headers, String headerName) {
+		return select(headers.getFirstRawValue(headerName));
+	}
+	
+	/** Select the best variant based on the given header value, or null if no variant is acceptable.
+	 * If the header is absent, empty or invalid, the preferred variant is returned.
+	 */
+	public String select(String headerValue) {
+		if (headerValue == null)
+			return variants[0];
+		Integer index = cache.get(headerValue);
+		if (index == null) {
+			AcceptedValues accepted;
+			try {
+				accepted = AcceptedValues.parse(headerValue);
+			} catch (MimeException e) {
+				return variants[0];
+			}
+			int i = accepted.isEmpty() ? 0 : selectIndex(accepted);
+			index = i < 0 ? NONE : Integer.valueOf(i);
+			cache.put(headerValue, index);
+		}
+		int i = index.intValue();
+		return i < 0 ? null : variants[i];
+	}
+	
+	/** Select the best variant for the given accepted values, or null if no variant is acceptable. */
+	public String select(AcceptedValues accepted) {
+		int i = selectIndex(accepted);
+		return i < 0 ? null : variants[i];
+	}
+	
+	private int selectIndex(AcceptedValues accepted) {
+		int best = -1;
+		int bestQuality = 0;
+		for (int i = 0; i < compiled.length; ++i) {
+			int q = accepted.getQuality(compiled[i]);
+			if (q > bestQuality) {
+				best = i;
+				bestQuality = q;
+				if (q == AcceptedValues.MAX_QUALITY)
+					break;
+			}
+		}
+		return best;
+	}
+	
+}
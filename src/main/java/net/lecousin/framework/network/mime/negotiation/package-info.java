@@ -0,0 +1,4 @@
+/**
+ * Content negotiation based on Accept, Accept-Charset, Accept-Encoding and Accept-Language headers.
+ */
+package net.lecousin.framework.network.mime.negotiation;
@@ -2,7 +2,6 @@ package net.lecousin.framework.network.mime.transfer;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 import java.util.List;
 import java.util.function.Supplier;
 
@@ -42,7 +41,7 @@ public final class MimeTransfer {
 		else
 			bodySize = -1;
 		AsyncConsumer<ByteBuffer, IOException> transfer = createTransfer(headers, bodySize, trailerSupplier, sender);
-		IAsync<IOException> sendHeaders = sender.push(Arrays.asList(headers.generateString(4096).asByteBuffers()));
+		IAsync<IOException> sendHeaders = headers.generateTo(sender);
 		Priority prio = Task.getCurrentPriority();
 		if (bodySize == 0)
 			return sendHeaders;
@@ -65,7 +64,7 @@ public final class MimeTransfer {
 			Long size = body.getResult().getValue1();
 			AsyncConsumer<ByteBuffer, IOException> transfer =
 				createTransfer(entity.getHeaders(), size == null ? -1 : size.longValue(), trailerSupplier, sender);
-			IAsync<IOException> sendHeaders = sender.push(Arrays.asList(entity.getHeaders().generateString(4096).asByteBuffers()));
+			IAsync<IOException> sendHeaders = entity.getHeaders().generateTo(sender);
 			sendHeaders.thenStart(TRANSFER_TASK_NAME, prio, () ->
 				body.getResult().getValue2().toConsumer(transfer, TRANSFER_TASK_NAME, prio).onDone(result), result);
 		}, result);
@@ -89,10 +88,15 @@ public final class MimeTransfer {
 		}
 		
 		if (trailerSupplier == null) {
-			ParameterizedHeaderValues transferEncoding;
-			try { transferEncoding = headers.getFirstValue(MimeHeaders.TRANSFER_ENCODING, ParameterizedHeaderValues.class); }
-			catch (Exception e) { transferEncoding = null; }
-			if (bodySize > 0 && (transferEncoding == null || !transferEncoding.hasMainValue("chunked"))) {
+			boolean chunked;
+			try {
+				ParameterizedHeaderValues transferEncoding =
+					headers.getFirstValue(MimeHeaders.TRANSFER_ENCODING, ParameterizedHeaderValues.class);
+				chunked = transferEncoding != null && transferEncoding.containsMainValue("chunked");
+			} catch (Exception e) {
+				chunked = false;
+			}
+			if (bodySize > 0 && !chunked) {
 				headers.setRawValue(MimeHeaders.CONTENT_LENGTH, Long.toString(bodySize));
 				return sender;
 			}
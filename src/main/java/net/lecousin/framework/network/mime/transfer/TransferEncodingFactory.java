@@ -7,7 +7,6 @@ import java.util.LinkedList;
 import net.lecousin.framework.concurrent.util.AsyncConsumer;
 import net.lecousin.framework.concurrent.util.PartialAsyncConsumer;
 import net.lecousin.framework.network.mime.header.MimeHeaders;
-import net.lecousin.framework.network.mime.header.ParameterizedHeaderValue;
 import net.lecousin.framework.network.mime.header.ParameterizedHeaderValues;
 
 /**
@@ -63,8 +62,10 @@ public final class TransferEncodingFactory {
 		catch (Exception e) { values = null; }
 		if (values == null) return false;
 		boolean changed = false;
-		for (ParameterizedHeaderValue value : values.getValues()) {
-			String e = value.getMainValue();
+		for (int i = 0, size = values.size(); i < size; ++i) {
+			String e;
+			try { e = values.mainValueAt(i); }
+			catch (Exception err) { e = null; }
 			if (e == null) continue;
 			e = e.trim().toLowerCase();
 			if (e.isEmpty()) continue;
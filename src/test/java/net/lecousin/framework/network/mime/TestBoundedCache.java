@@ -0,0 +1,48 @@
+package net.lecousin.framework.network.mime;
+
+import net.lecousin.framework.core.test.LCCoreAbstractTest;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestBoundedCache extends LCCoreAbstractTest {
+
+	@Test
+	public void testEviction() {
+		BoundedCache<String, Integer> cache = new BoundedCache<>(3);
+		cache.put("a", Integer.valueOf(1));
+		cache.put("b", Integer.valueOf(2));
+		cache.put("c", Integer.valueOf(3));
+		Assert.assertEquals(3, cache.size());
+		// a and c are referenced, b is evicted
+		Assert.assertEquals(1, cache.get("a").intValue());
+		Assert.assertEquals(3, cache.get("c").intValue());
+		cache.put("d", Integer.valueOf(4));
+		Assert.assertEquals(3, cache.size());
+		Assert.assertNull(cache.get("b"));
+		Assert.assertEquals(1, cache.get("a").intValue());
+		Assert.assertEquals(4, cache.get("d").intValue());
+		Assert.assertEquals(4, cache.getHits());
+		Assert.assertEquals(1, cache.getMisses());
+		cache.clear();
+		Assert.assertEquals(0, cache.size());
+		Assert.assertNull(cache.get("a"));
+	}
+
+	@Test
+	public void testDisabled() {
+		BoundedCache<String, Integer> cache = new BoundedCache<>(2);
+		cache.put("a", Integer.valueOf(1));
+		cache.setMaxSize(0);
+		Assert.assertEquals(0, cache.size());
+		cache.put("a", Integer.valueOf(1));
+		Assert.assertNull(cache.get("a"));
+		Assert.assertEquals(0, cache.getMisses());
+		cache.setMaxSize(1);
+		cache.put("a", Integer.valueOf(1));
+		cache.put("b", Integer.valueOf(2));
+		Assert.assertEquals(1, cache.size());
+		Assert.assertEquals(2, cache.get("b").intValue());
+	}
+
+}
@@ -1,25 +1,39 @@
 package net.lecousin.framework.network.mime;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
+import net.lecousin.framework.concurrent.async.Async;
 import net.lecousin.framework.concurrent.async.AsyncSupplier;
+import net.lecousin.framework.concurrent.async.IAsync;
+import net.lecousin.framework.concurrent.util.AsyncConsumer;
 import net.lecousin.framework.core.test.LCCoreAbstractTest;
 import net.lecousin.framework.io.data.ByteArray;
+import net.lecousin.framework.network.mime.header.InternetAddressHeaderValue;
+import net.lecousin.framework.network.mime.header.InternetAddressListHeaderValue;
 import net.lecousin.framework.network.mime.header.MimeHeader;
+import net.lecousin.framework.network.mime.header.MimeHeaderName;
 import net.lecousin.framework.network.mime.header.MimeHeaders;
+import net.lecousin.framework.network.mime.header.MimeHeadersTemplate;
 import net.lecousin.framework.network.mime.header.MimeHeadersContainer;
 import net.lecousin.framework.network.mime.header.ParameterizedHeaderValue;
 import net.lecousin.framework.network.mime.header.ParameterizedHeaderValues;
 import net.lecousin.framework.network.mime.header.parser.Address;
 import net.lecousin.framework.network.mime.header.parser.Comment;
 import net.lecousin.framework.network.mime.header.parser.DomainLiteral;
+import net.lecousin.framework.network.mime.header.parser.MimeHeaderValueLexer;
 import net.lecousin.framework.network.mime.header.parser.MimeHeaderValueParser;
 import net.lecousin.framework.network.mime.header.parser.Space;
 import net.lecousin.framework.network.mime.header.parser.Token;
 import net.lecousin.framework.network.mime.header.parser.Word;
 import net.lecousin.framework.text.CharArrayStringBuffer;
+import net.lecousin.framework.text.IString;
+import net.lecousin.framework.util.Pair;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -85,6 +99,41 @@ public class TestHeader extends LCCoreAbstractTest {
 		Assert.assertEquals(4, mime.getHeaders().size());
 	}
 	
+	@Test
+	public void testParsedValues() throws Exception {
+		MimeHeader h = new MimeHeader("X-Test", "a; b=c, d");
+		ParameterizedHeaderValue v = h.getValue(ParameterizedHeaderValue.class);
+		Assert.assertEquals("a", v.getMainValue());
+		ParameterizedHeaderValues values = h.getValue(ParameterizedHeaderValues.class);
+		Assert.assertEquals(2, values.getValues().size());
+		Assert.assertSame(v, h.getValue(ParameterizedHeaderValue.class));
+		Assert.assertSame(values, h.getValue(ParameterizedHeaderValues.class));
+		
+		h = new MimeHeader("X-Test", new ParameterizedHeaderValue("main", "p", "v"));
+		Assert.assertEquals("main;p=v", h.getRawValue());
+		Assert.assertEquals(1, h.getValue(ParameterizedHeaderValues.class).getValues().size());
+		
+		MimeHeader shared = new MimeHeader("X-Shared", "text/plain; charset=utf-8");
+		ParameterizedHeaderValue[] results = new ParameterizedHeaderValue[8];
+		Thread[] threads = new Thread[results.length];
+		for (int i = 0; i < threads.length; ++i) {
+			int index = i;
+			threads[i] = new Thread(() -> {
+				try {
+					results[index] = shared.getValue(ParameterizedHeaderValue.class);
+				} catch (MimeException e) {
+					// results stays null
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		for (ParameterizedHeaderValue r : results)
+			Assert.assertSame(results[0], r);
+		Assert.assertEquals("utf-8", results[0].getParameter("charset"));
+	}
+	
 	@Test
 	public void testParser() {
 		List<Token> tokens = MimeHeaderValueParser.parse("hello (a comment)  world [domain]  <user@mail.com> \"bonjour  \\\"ami\\\"\"");
@@ -201,6 +250,121 @@ public class TestHeader extends LCCoreAbstractTest {
 		Assert.assertTrue(consume.hasError());
 	}
 	
+	@Test
+	public void testParseHeaders() throws Exception {
+		MimeHeaders headers = new MimeHeaders();
+		AsyncSupplier<Boolean, MimeException> consume = headers.createConsumer().consume(new ByteArray((
+			"Content-Type: text/plain; charset=utf-8 \r\n" +
+			"X-Folded: hello\r\n world\r\n" +
+			"x-empty:\r\n" +
+			"Content-Length:  1234\r\n" +
+			"\r\n").getBytes(StandardCharsets.US_ASCII)));
+		consume.block(0);
+		Assert.assertFalse(consume.hasError());
+		Assert.assertTrue(consume.getResult().booleanValue());
+		Assert.assertEquals(4, headers.getHeaders().size());
+		MimeHeader h = headers.getFirst("content-TYPE");
+		Assert.assertNotNull(h);
+		Assert.assertTrue(h.isName("CONTENT-type"));
+		Assert.assertFalse(h.isName("Content-Typ"));
+		Assert.assertEquals("Content-Type", h.getName());
+		Assert.assertEquals("content-type", h.getNameLowerCase());
+		Assert.assertSame(MimeHeaderName.CONTENT_TYPE, h.getHeaderName());
+		Assert.assertSame(MimeHeaderName.CONTENT_LENGTH, headers.getFirst("content-length").getHeaderName());
+		Assert.assertEquals("x-empty", headers.getFirst("X-EMPTY").getHeaderName().getName());
+		Assert.assertEquals(MimeHeaderName.of("X-Empty"), headers.getFirst("X-EMPTY").getHeaderName());
+		Assert.assertArrayEquals("Content-Type: ".getBytes(StandardCharsets.US_ASCII), MimeHeaderName.CONTENT_TYPE.getPrefixBytes());
+		Assert.assertEquals("text/plain; charset=utf-8", h.getRawValue());
+		Assert.assertEquals("helloworld", headers.getFirstRawValue("X-FOLDED"));
+		Assert.assertEquals("", headers.getFirstRawValue("X-Empty"));
+		Assert.assertEquals(1234L, headers.getContentLength().longValue());
+		Assert.assertEquals("text/plain", headers.getContentTypeValue());
+		CharArrayStringBuffer s = new CharArrayStringBuffer();
+		headers.getFirst("x-folded").appendTo(s);
+		Assert.assertEquals("X-Folded: helloworld\r\n", s.toString());
+		h = headers.getFirst("x-empty");
+		h.setRawValue("not empty");
+		Assert.assertEquals("x-empty", h.getName());
+		Assert.assertEquals("not empty", headers.getFirstRawValue("X-Empty"));
+	}
+
+	@Test
+	public void testParseHeadersFromByteBuffer() throws Exception {
+		byte[] bytes = (
+			"Content-Type: multipart/form-data; boundary=\"----1234567890\"\r\n" +
+			"X-Very-Long-Header-Name-To-Scan: value with spaces\tand tabs  \r\n" +
+			"X-Folded: first\r\n\tsecond\r\n third\r\n" +
+			"Short:1\r\n" +
+			"X-No-CR: no CR\n" +
+			"Content-Length: 0\r\n" +
+			"\r\n" +
+			"body").getBytes(StandardCharsets.US_ASCII);
+		for (ByteOrder order : new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN }) {
+			for (boolean direct : new boolean[] { false, true }) {
+				for (int split = 1; split < bytes.length - 4; ++split) {
+					MimeHeaders headers = new MimeHeaders();
+					MimeHeaders.HeadersConsumer consumer = headers.createConsumer();
+					ByteBuffer b1 = direct ? ByteBuffer.allocateDirect(split) : ByteBuffer.allocate(split);
+					b1.order(order).put(bytes, 0, split).flip();
+					AsyncSupplier<Boolean, MimeException> consume = consumer.consume(b1);
+					Assert.assertFalse(consume.hasError());
+					Assert.assertFalse(consume.getResult().booleanValue());
+					Assert.assertFalse(b1.hasRemaining());
+					ByteBuffer b2 = direct ? ByteBuffer.allocateDirect(bytes.length - split) : ByteBuffer.allocate(bytes.length - split);
+					b2.order(order).put(bytes, split, bytes.length - split).flip();
+					consume = consumer.consume(b2);
+					Assert.assertFalse(consume.hasError());
+					Assert.assertTrue(consume.getResult().booleanValue());
+					Assert.assertEquals(4, b2.remaining());
+					Assert.assertEquals(6, headers.getHeaders().size());
+					Assert.assertEquals("multipart/form-data; boundary=\"----1234567890\"", headers.getFirstRawValue("content-type"));
+					Assert.assertEquals("value with spaces\tand tabs", headers.getFirstRawValue("X-Very-Long-Header-Name-To-Scan"));
+					Assert.assertEquals("firstsecondthird", headers.getFirstRawValue("X-Folded"));
+					Assert.assertEquals("1", headers.getFirstRawValue("short"));
+					Assert.assertEquals("no CR", headers.getFirstRawValue("x-no-cr"));
+					Assert.assertEquals(0L, headers.getContentLength().longValue());
+				}
+			}
+		}
+
+		MimeHeaders headers = new MimeHeaders();
+		AsyncSupplier<Boolean, MimeException> consume = headers.createConsumer(30).consume(ByteBuffer.wrap(bytes));
+		Assert.assertTrue(consume.hasError());
+		consume = headers.createConsumer().consume(ByteBuffer.wrap("Header without colon\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+		Assert.assertTrue(consume.hasError());
+	}
+
+	@Test
+	public void testManyHeaders() throws Exception {
+		MimeHeaders headers = new MimeHeaders();
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < 40; ++i)
+			s.append("Received: from host").append(i).append("\r\n");
+		for (int i = 0; i < 20; ++i)
+			s.append("X-Header-").append(i).append(": value").append(i).append("\r\n");
+		s.append("\r\n");
+		AsyncSupplier<Boolean, MimeException> consume = headers.createConsumer().consume(new ByteArray(s.toString().getBytes(StandardCharsets.US_ASCII)));
+		consume.block(0);
+		Assert.assertFalse(consume.hasError());
+		Assert.assertEquals(40, headers.getList("received").size());
+		Assert.assertEquals("from host0", headers.getFirstRawValue("RECEIVED"));
+		Assert.assertEquals("from host39", headers.getList("Received").get(39).getRawValue());
+		for (int i = 0; i < 20; ++i)
+			Assert.assertEquals("value" + i, headers.getFirstRawValue("x-header-" + i));
+		Assert.assertFalse(headers.has("x-header-20"));
+		headers.remove("X-HEADER-5");
+		Assert.assertFalse(headers.has("x-header-5"));
+		headers.addRawValue("x-header-5", "new");
+		Assert.assertEquals("new", headers.getFirstRawValue("X-Header-5"));
+		headers.setRawValue("Received", "only one");
+		Assert.assertEquals(1, headers.getList("received").size());
+		headers.add("X-Param", new ParameterizedHeaderValue("a", "b", "c"));
+		Assert.assertEquals("a", headers.getFirstValue("x-param", ParameterizedHeaderValue.class).getMainValue());
+		headers.getHeaders().remove(headers.getFirst("x-param"));
+		Assert.assertFalse(headers.has("X-Param"));
+		Assert.assertEquals(1 + 20 + 0, headers.getHeaders().size());
+	}
+
 	public static class Container implements MimeHeadersContainer<Container> {
 		
 		private MimeHeaders headers = new MimeHeaders();
@@ -227,4 +391,488 @@ public class TestHeader extends LCCoreAbstractTest {
 		Assert.assertEquals("A", c.getHeaders().getFirstValue("c", ParameterizedHeaderValue.class).getMainValue());
 	}
 	
+	@Test
+	public void testLexerMatchesTokenParser() throws Exception {
+		String[] values = new String[] {
+			"text/plain; charset=utf-8",
+			"toto; titi=tata; (a comment) hello=world, heho, aa; bb=cc",
+			"form-data; name=\"field\"; filename=\"a \\\"b\\\" c.txt\"",
+			"  a ;; b = \"c;d\" ; (x) e (y) ;",
+			"a, ,b,, c ; d=<e; f> ; g=[h, i]",
+			"x (unterminated",
+			"\"unterminated; a=b",
+			"a\\, b\\",
+			"My Name <me@example.com>, \"Other, Name\" (comment) < other@example.com >",
+			"(c) name (d) <a (b) @c> trailing, plain@example.com, <only@example.com>",
+			"",
+			" \t ",
+			"a\u0000b; c=d"
+		};
+		for (String value : values) {
+			ParameterizedHeaderValues v1 = new ParameterizedHeaderValues();
+			v1.parseRawValue(value);
+			ParameterizedHeaderValues v2 = new ParameterizedHeaderValues();
+			v2.parseTokens(MimeHeaderValueParser.parse(value));
+			Assert.assertEquals(value, toString(v2), toString(v1));
+			InternetAddressListHeaderValue a1 = new InternetAddressListHeaderValue();
+			a1.parseRawValue(value);
+			InternetAddressListHeaderValue a2 = new InternetAddressListHeaderValue();
+			a2.parseTokens(MimeHeaderValueParser.parse(value));
+			Assert.assertEquals(value, toString(a2), toString(a1));
+			InternetAddressHeaderValue i1 = new InternetAddressHeaderValue();
+			i1.parseRawValue(value);
+			InternetAddressHeaderValue i2 = new InternetAddressHeaderValue();
+			i2.parseTokens(MimeHeaderValueParser.parse(value));
+			Assert.assertEquals(value, i2.getDisplayName() + "|" + i2.getAddress(), i1.getDisplayName() + "|" + i1.getAddress());
+		}
+		MimeHeaderValueLexer lexer = new MimeHeaderValueLexer("a\\\"b <c (d)>");
+		Assert.assertEquals(MimeHeaderValueLexer.Kind.WORD, lexer.next());
+		Assert.assertEquals("a\"b", lexer.getText());
+		Assert.assertEquals(MimeHeaderValueLexer.Kind.SPACE, lexer.next());
+		Assert.assertEquals(MimeHeaderValueLexer.Kind.ADDRESS, lexer.next());
+		Assert.assertEquals("<c (d)>", lexer.getText());
+		MimeHeaderValueLexer content = lexer.content();
+		Assert.assertEquals(MimeHeaderValueLexer.Kind.WORD, content.next());
+		Assert.assertEquals(MimeHeaderValueLexer.Kind.SPACE, content.next());
+		Assert.assertEquals(MimeHeaderValueLexer.Kind.COMMENT, content.next());
+		Assert.assertEquals(MimeHeaderValueLexer.Kind.END, content.next());
+		Assert.assertEquals(MimeHeaderValueLexer.Kind.END, lexer.next());
+	}
+	
+	@Test
+	public void testContentTypeCache() throws Exception {
+		BoundedCache<String, ParameterizedHeaderValue> cache = MimeHeaders.getContentTypeCache();
+		String raw = "application/x-test-cache; charset=utf-8";
+		MimeHeaders h1 = new MimeHeaders(new MimeHeader(MimeHeaders.CONTENT_TYPE, raw));
+		MimeHeaders h2 = new MimeHeaders(new MimeHeader(MimeHeaders.CONTENT_TYPE, raw));
+		long hits = cache.getHits();
+		ParameterizedHeaderValue v1 = h1.getContentType();
+		ParameterizedHeaderValue v2 = h2.getContentType();
+		Assert.assertTrue(cache.getHits() > hits);
+		Assert.assertNotSame(v1, v2);
+		Assert.assertSame(v2, h2.getContentType());
+		Assert.assertEquals("application/x-test-cache", v2.getMainValue());
+		Assert.assertEquals("utf-8", v2.getParameter("charset"));
+		// reading the parameters does not copy them
+		Assert.assertSame(v1.getParameters().get(0), v2.getParameters().get(0));
+		try {
+			v2.getParameters().clear();
+			throw new AssertionError();
+		} catch (UnsupportedOperationException e) {
+			// ok
+		}
+		v2.getModifiableParameters().get(0).setValue2("utf-16");
+		Assert.assertEquals("utf-8", v1.getParameter("charset"));
+		v2.setParameter("charset", "utf-8");
+		// copy on write
+		v1.setParameter("charset", "iso-8859-1");
+		v1.addParameter("a", "b");
+		Assert.assertEquals("utf-8", v2.getParameter("charset"));
+		Assert.assertNull(v2.getParameter("a"));
+		MimeHeaders h3 = new MimeHeaders(new MimeHeader(MimeHeaders.CONTENT_TYPE, raw));
+		Assert.assertEquals("utf-8", h3.getContentType().getParameter("charset"));
+		Assert.assertEquals(1, h3.getContentType().getParameters().size());
+	}
+	
+	@Test
+	public void testGenerateByteBuffer() throws Exception {
+		MimeHeaders headers = new MimeHeaders();
+		byte[] raw = "X-Parsed: parsed value\r\nContent-Type: text/plain\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+		headers.createConsumer().consume(ByteBuffer.wrap(raw)).blockThrow(0);
+		headers.addRawValue("X-Raw", "raw value");
+		ParameterizedHeaderValue value = new ParameterizedHeaderValue("main");
+		for (int i = 0; i < 20; ++i)
+			value.addParameter("parameter" + i, "value" + i);
+		headers.add("X-Format", value);
+		String expected = headers.generateString(4096).asString();
+		Assert.assertEquals(expected.length(), headers.getGeneratedLength());
+		ByteBuffer buffer = headers.generateByteBuffer();
+		Assert.assertEquals(expected.length(), buffer.remaining());
+		Assert.assertEquals(expected, new String(buffer.array(), buffer.position(), buffer.remaining(), StandardCharsets.ISO_8859_1));
+		buffer = ByteBuffer.allocate(headers.getGeneratedLength() + 10);
+		buffer.put((byte)'a');
+		headers.generate(buffer);
+		Assert.assertEquals(1 + expected.length(), buffer.position());
+		Assert.assertEquals(expected, new String(buffer.array(), 1, expected.length(), StandardCharsets.ISO_8859_1));
+		Assert.assertEquals("\r\n", StandardCharsets.US_ASCII.decode(new MimeHeaders().generateByteBuffer()).toString());
+	}
+	
+	@Test
+	public void testGenerateTypedValuesOnce() throws Exception {
+		int[] count = new int[1];
+		ParameterizedHeaderValue value = new ParameterizedHeaderValue("main", "p", "v") {
+			@Override
+			public void generate(IString s, int firstLineMaxLength, int maxSubLineLength) {
+				count[0]++;
+				super.generate(s, firstLineMaxLength, maxSubLineLength);
+			}
+		};
+		MimeHeaders headers = new MimeHeaders();
+		headers.addRawValue("X-Raw", "raw");
+		headers.add("X-Format", value);
+		String expected = "X-Raw: raw\r\nX-Format: main;p=v\r\n\r\n";
+		// length and generation in a single pass
+		Assert.assertEquals(expected, new String(headers.generateBytes(), StandardCharsets.ISO_8859_1));
+		Assert.assertEquals(1, count[0]);
+		headers.addRawValue("X-Other", "o");
+		expected = expected.substring(0, expected.length() - 2) + "X-Other: o\r\n\r\n";
+		ByteBuffer buffer = headers.generateByteBuffer();
+		Assert.assertEquals(2, count[0]);
+		Assert.assertEquals(expected, StandardCharsets.ISO_8859_1.decode(buffer).toString());
+		// a value modified between the computation of the length and the generation is generated with its new content
+		int length = headers.getGeneratedLength();
+		Assert.assertEquals(expected.length(), length);
+		value.setParameter("p", "longer");
+		buffer = ByteBuffer.allocate(length + 10);
+		headers.generate(buffer);
+		buffer.flip();
+		Assert.assertEquals(expected.replace("p=v", "p=longer"), StandardCharsets.ISO_8859_1.decode(buffer).toString());
+		Assert.assertEquals(expected.length() + 5, headers.getGeneratedLength());
+		value.setParameter("p", "v");
+		// generateTo gives a read-only buffer
+		StringBuilder s = new StringBuilder();
+		headers.generateTo(new AsyncConsumer<ByteBuffer, IOException>() {
+			@Override
+			public IAsync<IOException> consume(ByteBuffer data) {
+				Assert.assertTrue(data.isReadOnly());
+				s.append(StandardCharsets.ISO_8859_1.decode(data));
+				return new Async<>(true);
+			}
+			
+			@Override
+			public IAsync<IOException> end() {
+				return new Async<>(true);
+			}
+			
+			@Override
+			public void error(IOException error) {
+				// not used
+			}
+		}).blockThrow(0);
+		Assert.assertEquals(expected, s.toString());
+	}
+	
+	@Test
+	public void testFreeze() throws Exception {
+		MimeHeaders headers = new MimeHeaders();
+		headers.addRawValue("X-A", "a");
+		headers.add(MimeHeaders.CONTENT_TYPE, new ParameterizedHeaderValue("text/plain", "charset", "utf-8"));
+		headers.addRawValue("X-B", "b");
+		String expected = headers.generateString(1024).asString();
+		MimeHeaders frozen = headers.freeze();
+		Assert.assertTrue(frozen.isFrozen());
+		Assert.assertFalse(headers.isFrozen());
+		Assert.assertEquals(expected, frozen.generateString(1024).asString());
+		Assert.assertEquals(expected.length(), frozen.getGeneratedLength());
+		ByteBuffer buffer = frozen.generateByteBuffer();
+		Assert.assertFalse(buffer.isReadOnly());
+		Assert.assertEquals(expected, new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), StandardCharsets.ISO_8859_1));
+		Assert.assertEquals(expected, StandardCharsets.ISO_8859_1.decode(buffer).toString());
+		Assert.assertEquals("text/plain", frozen.getContentTypeValue());
+		// the original headers are independent, including their typed values
+		headers.setRawValue("X-A", "changed");
+		Assert.assertEquals("a", frozen.getFirstRawValue("X-A"));
+		headers.getContentType().setParameter("charset", "iso-8859-1");
+		Assert.assertEquals("utf-8", frozen.getContentType().getParameter("charset"));
+		Assert.assertEquals(expected, frozen.generateString(1024).asString());
+		MimeHeader typed = new MimeHeader("X-List", new InternetAddressListHeaderValue());
+		MimeHeader typedCopy = typed.copy();
+		typed.getValue(InternetAddressListHeaderValue.class).addAddress(null, "a@b.c");
+		Assert.assertEquals(0, typedCopy.getValue(InternetAddressListHeaderValue.class).getAddresses().size());
+		// headers of a frozen snapshot cannot be modified directly
+		try {
+			frozen.getFirst("X-A").setRawValue("changed");
+			throw new AssertionError();
+		} catch (IllegalStateException e) {
+			// ok
+		}
+		// copies share the snapshot until they are modified
+		MimeHeaders copy1 = frozen.copy();
+		MimeHeaders copy2 = frozen.copy();
+		Assert.assertTrue(copy1.isFrozen());
+		copy1.setRawValue("X-A", "1");
+		Assert.assertFalse(copy1.isFrozen());
+		Assert.assertEquals("1", copy1.getFirstRawValue("X-A"));
+		Assert.assertEquals("a", frozen.getFirstRawValue("X-A"));
+		Assert.assertEquals("a", copy2.getFirstRawValue("X-A"));
+		copy1.getFirst("X-B").setRawValue("2");
+		Assert.assertEquals("b", frozen.getFirstRawValue("X-B"));
+		Assert.assertEquals(expected, copy2.generateString(1024).asString());
+		// removing nothing does not unfreeze
+		copy2.remove("X-Unknown");
+		Assert.assertTrue(copy2.isFrozen());
+		for (Iterator<MimeHeader> it = copy2.getHeaders().iterator(); it.hasNext(); )
+			if (it.next().isName(MimeHeaders.CONTENT_TYPE))
+				it.remove();
+		Assert.assertFalse(copy2.isFrozen());
+		Assert.assertEquals(2, copy2.getHeaders().size());
+		Assert.assertNull(copy2.getFirst(MimeHeaders.CONTENT_TYPE));
+		Assert.assertEquals(3, frozen.getHeaders().size());
+		Assert.assertEquals(expected, frozen.generateString(1024).asString());
+	}
+	
+	@Test
+	public void testCompact() throws Exception {
+		MimeHeaders headers = new MimeHeaders();
+		for (int i = 0; i < 20; ++i)
+			headers.addRawValue("X-Header-" + i, "value " + i);
+		headers.add(MimeHeaders.CONTENT_TYPE, new ParameterizedHeaderValue("text/plain", "charset", "utf-8"));
+		headers.addRawValue("x-header-5", "other");
+		String expected = headers.generateString(4096).asString();
+		Assert.assertTrue(headers.compact());
+		Assert.assertTrue(headers.isCompact());
+		Assert.assertEquals(22, headers.getHeaders().size());
+		Assert.assertEquals(expected, headers.generateString(4096).asString());
+		Assert.assertEquals(expected, StandardCharsets.ISO_8859_1.decode(headers.generateByteBuffer()).toString());
+		Assert.assertEquals("value 3", headers.getFirstRawValue("x-HEADER-3"));
+		Assert.assertEquals(2, headers.getList("X-Header-5").size());
+		Assert.assertEquals("text/plain", headers.getContentTypeValue());
+		Assert.assertNull(headers.getFirst("X-Unknown"));
+		try {
+			headers.getFirst("X-Header-1").setRawValue("changed");
+			throw new AssertionError();
+		} catch (IllegalStateException e) {
+			// ok
+		}
+		// a copy shares the compact form
+		MimeHeaders copy = headers.copy();
+		Assert.assertTrue(copy.isCompact());
+		// a modification restores modifiable headers
+		headers.setRawValue("X-Header-1", "changed");
+		Assert.assertFalse(headers.isCompact());
+		Assert.assertEquals("changed", headers.getFirstRawValue("X-Header-1"));
+		Assert.assertEquals(22, headers.getHeaders().size());
+		Assert.assertEquals("value 1", copy.getFirstRawValue("X-Header-1"));
+		Assert.assertEquals(expected, copy.generateString(4096).asString());
+		// characters which are not ISO-8859-1 cannot be compacted
+		MimeHeaders unicode = new MimeHeaders();
+		unicode.addRawValue("X-A", "€");
+		Assert.assertFalse(unicode.compact());
+		Assert.assertFalse(unicode.isCompact());
+		Assert.assertEquals("€", unicode.getFirstRawValue("X-A"));
+	}
+
+	@Test
+	public void testVisitors() throws Exception {
+		MimeHeaders headers = new MimeHeaders();
+		headers.addRawValue("X-N", "123");
+		headers.addRawValue("X-N", "-9223372036854775808");
+		headers.addRawValue("X-Bad", "12a");
+		headers.addRawValue("X-Overflow", "9223372036854775808");
+		headers.addRawValue("X-Sign", "+");
+		headers.add("Accept", new ParameterizedHeaderValues());
+		Assert.assertEquals(6, headers.size());
+		Assert.assertEquals("X-Bad", headers.get(2).getName());
+		Assert.assertEquals(123L, headers.getFirstLong("x-n", -1));
+		Assert.assertEquals(-1L, headers.getFirstLong("X-Bad", -1));
+		Assert.assertEquals(-1L, headers.getFirstLong("X-Overflow", -1));
+		Assert.assertEquals(-1L, headers.getFirstLong("X-Sign", -1));
+		Assert.assertEquals(-1L, headers.getFirstLong("X-Unknown", -1));
+		Assert.assertEquals(Long.MIN_VALUE, headers.getList("X-N").get(1).getLongValue(0));
+		Assert.assertNull(headers.getFirstLongValue("X-Bad"));
+		Assert.assertEquals(Long.valueOf(123), headers.getFirstLongValue("X-N"));
+		StringBuilder s = new StringBuilder();
+		headers.forEach("X-N", h -> s.append(h.getRawValue()).append(';'));
+		Assert.assertEquals("123;-9223372036854775808;", s.toString());
+		List<ParameterizedHeaderValues> values = new ArrayList<>();
+		headers.forEachValue("accept", ParameterizedHeaderValues.class, values::add);
+		Assert.assertEquals(1, values.size());
+		headers.forEach("X-Unknown", h -> { throw new AssertionError(); });
+		// same results with the name index and the compact form
+		for (int i = 0; i < 10; ++i)
+			headers.addRawValue("X-" + i, Integer.toString(i));
+		Assert.assertEquals(7L, headers.getFirstLong("X-7", -1));
+		s.setLength(0);
+		headers.forEach("X-N", h -> s.append(h.getRawValue()).append(';'));
+		Assert.assertEquals("123;-9223372036854775808;", s.toString());
+		Assert.assertTrue(headers.compact());
+		Assert.assertEquals(7L, headers.getFirstLong("X-7", -1));
+		Assert.assertEquals(-1L, headers.getFirstLong("X-Bad", -1));
+		s.setLength(0);
+		headers.forEach("X-N", h -> s.append(h.getRawValue()).append(';'));
+		Assert.assertEquals("123;-9223372036854775808;", s.toString());
+		// removal when the name index is used
+		headers.remove("X-Bad");
+		Assert.assertFalse(headers.isCompact());
+		Assert.assertEquals(7L, headers.getFirstLong("X-7", -1));
+		headers.remove("x-n");
+		Assert.assertNull(headers.getFirst("X-N"));
+		Assert.assertFalse(headers.has("X-N"));
+		headers.forEach("X-N", h -> { throw new AssertionError(); });
+		headers.addRawValue("X-n", "5");
+		Assert.assertTrue(headers.has("x-n"));
+		Assert.assertEquals(5L, headers.getFirstLong("X-N", -1));
+		Assert.assertEquals(1, headers.getList("x-N").size());
+		Assert.assertEquals(14, headers.size());
+	}
+
+	@Test
+	public void testAddressListIterator() {
+		String raw = "A <a@Example.com>, , \"B, C\" <b@example.com> (comment), c@other.org ,";
+		InternetAddressListHeaderValue list = new InternetAddressListHeaderValue();
+		list.parseRawValue(raw);
+		Assert.assertEquals(3, list.count());
+		StringBuilder s = new StringBuilder();
+		for (InternetAddressHeaderValue a : list)
+			s.append('[').append(a.getDisplayName()).append('|').append(a.getAddress()).append(']');
+		Assert.assertEquals("[A|a@Example.com][B, C|b@example.com][null|c@other.org]", s.toString());
+		Iterator<InternetAddressHeaderValue> it = list.iterator();
+		InternetAddressHeaderValue a1 = it.next();
+		InternetAddressHeaderValue a2 = it.next();
+		it.next();
+		Assert.assertFalse(it.hasNext());
+		Assert.assertEquals("example.com", a1.getDomain());
+		Assert.assertSame(a1.getDomain(), a2.getDomain());
+		Assert.assertNull(new InternetAddressHeaderValue(null, "local").getDomain());
+		// once the list is requested, addresses are kept
+		Assert.assertEquals(s.toString(), toString(list));
+		Assert.assertSame(list.getAddresses().get(0), list.iterator().next());
+		list.parseRawValue("d@d.com");
+		Assert.assertEquals(4, list.count());
+		Assert.assertEquals(4, list.getAddresses().size());
+		// a sub-class accessing the addresses field directly sees the parsed addresses
+		InternetAddressListHeaderValue sub = new InternetAddressListHeaderValue() {
+			@Override
+			public String toString() {
+				return Integer.toString(addresses.size());
+			}
+		};
+		sub.parseRawValue(raw);
+		Assert.assertEquals("3", sub.toString());
+		InternetAddressListHeaderValue empty = new InternetAddressListHeaderValue();
+		empty.parseRawValue(" , ");
+		Assert.assertEquals(0, empty.count());
+		Assert.assertFalse(empty.iterator().hasNext());
+	}
+
+	@Test
+	public void testLazyHeaderValues() throws Exception {
+		ParameterizedHeaderValues values = new ParameterizedHeaderValues();
+		values.parseRawValue("gzip;q=1 , deflate, =?utf-8?Q?caf=C3=A9?=; x=y,, \"chunked\"");
+		Assert.assertEquals(4, values.size());
+		Assert.assertEquals("chunked", values.lastMainValue());
+		Assert.assertTrue(values.containsMainValue("deflate"));
+		// like a parameter, an encoded word is not considered as a main value because it contains '='
+		Assert.assertNull(values.mainValueAt(2));
+		Assert.assertFalse(values.containsMainValue("q=1"));
+		Assert.assertEquals("gzip", values.mainValueAt(0));
+		ParameterizedHeaderValue v = values.get(0);
+		Assert.assertEquals("1", v.getParameter("q"));
+		Assert.assertSame(v, values.get(0));
+		Assert.assertEquals("y", values.get(2).getParameter("x"));
+		// the list contains the values already parsed
+		Assert.assertSame(v, values.getValues().get(0));
+		Assert.assertEquals(4, values.getValues().size());
+		values.getValues().remove(3);
+		Assert.assertEquals("deflate", values.mainValueAt(1));
+		Assert.assertNull(values.lastMainValue());
+		values.parseRawValue("");
+		Assert.assertEquals(0, values.size());
+		Assert.assertNull(values.lastMainValue());
+	}
+	
+	@Test
+	public void testEmptyCommaSeparatedValues() throws Exception {
+		// like the token parser, an empty element is ignored but an element containing only spaces or comments gives an empty value
+		String[] raws = { "a, ,b", "a,,b", ",a,", "a, b ,", " ", "", "a,\t,b", "a,(c),b", "a, ;x=1, b" };
+		int[] sizes = { 3, 2, 1, 2, 1, 0, 3, 3, 3 };
+		for (int i = 0; i < raws.length; ++i) {
+			ParameterizedHeaderValues lazy = new ParameterizedHeaderValues();
+			lazy.parseRawValue(raws[i]);
+			ParameterizedHeaderValues eager = new ParameterizedHeaderValues();
+			eager.parseTokens(MimeHeaderValueParser.parse(raws[i]));
+			Assert.assertEquals(raws[i], sizes[i], eager.getValues().size());
+			Assert.assertEquals(raws[i], sizes[i], lazy.size());
+			for (int j = 0; j < sizes[i]; ++j) {
+				Assert.assertEquals(raws[i], eager.getValues().get(j).getMainValue(), lazy.mainValueAt(j));
+				Assert.assertEquals(raws[i], eager.getValues().get(j).getParameters(), lazy.get(j).getParameters());
+			}
+			Assert.assertEquals(raws[i], sizes[i], lazy.getValues().size());
+		}
+		ParameterizedHeaderValues values = new ParameterizedHeaderValues();
+		values.parseRawValue("a, ,b");
+		Assert.assertEquals("", values.mainValueAt(1));
+		Assert.assertEquals("b", values.lastMainValue());
+	}
+
+	@Test
+	public void testConsumerReset() throws Exception {
+		MimeHeaders h1 = new MimeHeaders();
+		MimeHeaders.HeadersConsumer consumer = h1.createConsumer(100);
+		Assert.assertTrue(consumer.consume(ByteBuffer.wrap("A: 1\r\nB: 2\r\n\r\n".getBytes(StandardCharsets.US_ASCII))).blockResult(0).booleanValue());
+		MimeHeaders h2 = new MimeHeaders();
+		consumer.reset(h2);
+		Assert.assertSame(h2, consumer.getHeaders());
+		Assert.assertTrue(consumer.isExpectingData());
+		Assert.assertTrue(consumer.consume(ByteBuffer.wrap("C: 3\r\n\r\n".getBytes(StandardCharsets.US_ASCII))).blockResult(0).booleanValue());
+		Assert.assertEquals(2, h1.getHeaders().size());
+		Assert.assertEquals("2", h1.getFirstRawValue("B"));
+		Assert.assertEquals(1, h2.getHeaders().size());
+		Assert.assertEquals("3", h2.getFirstRawValue("C"));
+		// the maximum length applies to each headers
+		consumer.reset(new MimeHeaders());
+		Assert.assertTrue(consumer.consume(ByteBuffer.wrap("D: 4\r\n\r\n".getBytes(StandardCharsets.US_ASCII))).blockResult(0).booleanValue());
+	}
+
+	@Test
+	public void testTemplate() throws Exception {
+		MimeHeadersTemplate template = new MimeHeadersTemplate()
+			.add(MimeHeaders.CONTENT_TYPE, new ParameterizedHeaderValue("application/octet-stream"))
+			.addSlot(MimeHeaders.CONTENT_LENGTH, "length")
+			.add("X-Static", "static")
+			.addSlot(MimeHeaders.CONTENT_DISPOSITION, "attachment; filename=", "filename", "; x=y");
+		Assert.assertEquals(2, template.getSlots().size());
+		MimeHeadersTemplate.Values values = template.newValues();
+		try {
+			values.toByteBuffers();
+			throw new AssertionError();
+		} catch (IllegalStateException e) {
+			// ok
+		}
+		try {
+			template.add("X-Other", "other");
+			throw new AssertionError();
+		} catch (IllegalStateException e) {
+			// ok
+		}
+		for (int i = 0; i < 2; ++i) {
+			String filename = i == 0 ? "file.txt" : "my file.txt";
+			values.set("length", 1234L * i).setEncoded("filename", filename);
+			MimeHeaders headers = new MimeHeaders();
+			headers.add(MimeHeaders.CONTENT_TYPE, new ParameterizedHeaderValue("application/octet-stream"));
+			headers.addRawValue(MimeHeaders.CONTENT_LENGTH, Long.toString(1234L * i));
+			headers.addRawValue("X-Static", "static");
+			headers.addRawValue(MimeHeaders.CONTENT_DISPOSITION, "attachment; filename=" + MimeUtil.encodeHeaderValueWithUTF8(filename) + "; x=y");
+			String expected = headers.generateString(1024).asString();
+			StringBuilder s = new StringBuilder();
+			ByteBuffer[] buffers = values.toByteBuffers();
+			Assert.assertEquals(5, buffers.length);
+			for (ByteBuffer b : buffers)
+				s.append(StandardCharsets.ISO_8859_1.decode(b));
+			Assert.assertEquals(expected, s.toString());
+			Assert.assertEquals(expected.length(), values.getGeneratedLength());
+			ByteBuffer buffer = ByteBuffer.allocate(values.getGeneratedLength());
+			values.generate(buffer);
+			Assert.assertEquals(expected, new String(buffer.array(), StandardCharsets.ISO_8859_1));
+		}
+	}
+	
+	private static String toString(ParameterizedHeaderValues values) {
+		StringBuilder s = new StringBuilder();
+		for (ParameterizedHeaderValue v : values.getValues()) {
+			s.append('[').append(v.getMainValue());
+			for (Pair<String, String> p : v.getParameters())
+				s.append('|').append(p.getValue1()).append('=').append(p.getValue2());
+			s.append(']');
+		}
+		return s.toString();
+	}
+	
+	private static String toString(InternetAddressListHeaderValue list) {
+		StringBuilder s = new StringBuilder();
+		for (InternetAddressHeaderValue a : list.getAddresses())
+			s.append('[').append(a.getDisplayName()).append('|').append(a.getAddress()).append(']');
+		return s.toString();
+	}
+	
 }
@@ -1,7 +1,12 @@
 package net.lecousin.framework.network.mime;
 
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
 import net.lecousin.framework.core.test.LCCoreAbstractTest;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 public class TestMimeType extends LCCoreAbstractTest {
@@ -11,4 +16,64 @@ public class TestMimeType extends LCCoreAbstractTest {
 		MimeType.defaultByExtension.get("html");
 	}
 	
+	@Test
+	public void testRegistry() throws Exception {
+		Assert.assertEquals(MimeType.HTML, MimeType.getTypeForFileName("/var/www/Index.HTML"));
+		Assert.assertEquals("application/pdf", MimeType.getTypeForFileName("C:\\docs\\report.2020.pdf"));
+		Assert.assertEquals("image/webp", MimeType.getTypeByExtension("WebP"));
+		Assert.assertNull(MimeType.getTypeForFileName("README"));
+		Assert.assertNull(MimeType.getTypeForFileName("dir.html/file"));
+		Assert.assertNull(MimeType.getTypeForFileName("file.unknownext"));
+		// every default type is in the registry
+		for (Map.Entry<String, String> e : MimeType.defaultByExtension.entrySet())
+			Assert.assertEquals(e.getValue(), MimeType.getTypeByExtension(e.getKey()));
+		Assert.assertEquals("jpeg", MimeTypeRegistry.getDefault().getExtensions("IMAGE/JPEG").get(0));
+		
+		MimeTypeRegistry registry = new MimeTypeRegistry();
+		registry.load(new ByteArrayInputStream((
+			"# comment\n"
+			+ "application/gzip\tgz\n"
+			+ "application/x-tar tar\n"
+			+ "application/x-gtar  tar.gz tgz\n"
+			+ "text/x-old\tfoo\n"
+			+ "text/x-new\tfoo\n"
+		).getBytes(StandardCharsets.UTF_8)));
+		Assert.assertEquals("application/gzip", registry.getTypeForFileName("a.gz"));
+		Assert.assertEquals("application/x-gtar", registry.getTypeForFileName("archive.TAR.gz"));
+		Assert.assertEquals("application/x-tar", registry.getTypeForFileName("archive.tar"));
+		Assert.assertEquals("text/x-new", registry.getTypeByExtension("foo"));
+		Assert.assertTrue(registry.getExtensions("text/x-old").isEmpty());
+		Assert.assertEquals(2, registry.getExtensions("application/x-gtar").size());
+		Assert.assertNull(registry.getTypeByExtension("gtar"));
+	}
+	
+	@Test
+	public void testMediaType() {
+		MediaType t = MediaType.parse("Application/Atom+XML; Charset=\"utf-8\"; a=b");
+		Assert.assertEquals("application", t.getType());
+		Assert.assertEquals("atom+xml", t.getSubType());
+		Assert.assertEquals("xml", t.getSuffix());
+		Assert.assertEquals("utf-8", t.getParameter("charset"));
+		Assert.assertEquals("b", t.getParameter("A"));
+		Assert.assertEquals("application/atom+xml;charset=utf-8;a=b", t.toString());
+		Assert.assertSame(t, MediaType.parse("Application/Atom+XML; Charset=\"utf-8\"; a=b"));
+		Assert.assertSame(t.getEssence(), MediaType.parse("application/atom+xml"));
+		Assert.assertSame(t.getEssence(), MediaType.of("APPLICATION", "Atom+Xml"));
+		Assert.assertSame(t.getEssence(), t.getEssence().getEssence());
+		Assert.assertTrue(t.getEssence().getParameters().isEmpty());
+		Assert.assertNotEquals(t, t.getEssence());
+		Assert.assertEquals(t, MediaType.parse("application/atom+xml;charset=utf-8;a=b"));
+		Assert.assertEquals(t.hashCode(), MediaType.parse("application/atom+xml;charset=utf-8;a=b").hashCode());
+		Assert.assertNull(MediaType.parse("text/plain").getSuffix());
+		Assert.assertNull(MediaType.parse("text"));
+		Assert.assertNull(MediaType.parse("/plain"));
+		Assert.assertNull(MediaType.parse("text/"));
+		MediaType.getCache().setMaxSize(0);
+		try {
+			Assert.assertEquals(MediaType.parse("text/plain"), MediaType.parse("text/plain"));
+		} finally {
+			MediaType.getCache().setMaxSize(256);
+		}
+	}
+	
 }
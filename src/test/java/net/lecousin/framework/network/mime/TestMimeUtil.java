@@ -51,6 +51,39 @@ public class TestMimeUtil extends LCCoreAbstractTest {
 		} catch (UnsupportedEncodingException e) {
 			// ok
 		}
+		try {
+			MimeUtil.decodeRFC2047("test=?unknown-charset?Q?a?=");
+			throw new AssertionError();
+		} catch (UnsupportedEncodingException e) {
+			// ok
+		}
+	}
+	
+	@Test
+	public void testDecodeRFC2047AdjacentWords() throws Exception {
+		// spaces between encoded words are ignored
+		Assert.assertEquals("helloworld", MimeUtil.decodeRFC2047("=?utf-8?Q?hello?= =?utf-8?Q?world?="));
+		Assert.assertEquals("helloworld !", MimeUtil.decodeRFC2047("=?utf-8?Q?hello?=\t =?iso-8859-1?B?d29ybGQ=?= !"));
+		Assert.assertEquals("a hello b", MimeUtil.decodeRFC2047("a =?utf-8?Q?hello?= b"));
+		Assert.assertEquals("hello x world", MimeUtil.decodeRFC2047("=?utf-8?Q?hello?= =?x?= world"));
+		// a character split between 2 encoded words
+		Assert.assertEquals("a\u00e4b", MimeUtil.decodeRFC2047("=?utf-8?Q?a=C3?= =?UTF-8?Q?=A4b?="));
+		Assert.assertEquals("\u00e4\u00f6", MimeUtil.decodeRFC2047("=?utf-8?B?w6TD?= =?utf-8?B?tg==?="));
+		// encoded text starting with =
+		Assert.assertEquals("A", MimeUtil.decodeRFC2047("=?utf-8?Q?=41?="));
+		// language
+		Assert.assertEquals("a", MimeUtil.decodeRFC2047("=?us-ascii*en?Q?a?="));
+		// in Q encoding an underscore is a space, an encoded underscore is kept
+		Assert.assertEquals("Hello World", MimeUtil.decodeRFC2047("=?utf-8?Q?Hello_World?="));
+		Assert.assertEquals("a_b", MimeUtil.decodeRFC2047("=?utf-8?Q?a=5Fb?="));
+		StringBuilder s = new StringBuilder();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 1000; ++i) {
+			s.append("=?utf-8?B?w6Q=?= ");
+			expected.append('\u00e4');
+		}
+		expected.append(' ');
+		Assert.assertEquals(expected.toString(), MimeUtil.decodeRFC2047(s.toString()));
 	}
 	
 	@Test
@@ -1,11 +1,14 @@
 package net.lecousin.framework.network.mime.entity;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.lecousin.framework.concurrent.async.AsyncSupplier;
 import net.lecousin.framework.core.test.LCCoreAbstractTest;
 import net.lecousin.framework.io.buffering.ByteArrayIO;
+import net.lecousin.framework.network.mime.header.MimeHeaders;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -19,4 +22,68 @@ public class TestMimeEntity extends LCCoreAbstractTest {
 		Assert.assertTrue(parse.hasError());
 	}
 	
+	@Test
+	public void testFactory() {
+		DefaultMimeEntityFactory factory = DefaultMimeEntityFactory.getInstance();
+		MimeHeaders headers = new MimeHeaders().addRawValue(MimeHeaders.CONTENT_TYPE, "text/plain; charset=utf-8");
+		Assert.assertTrue(factory.create(null, headers) instanceof TextEntity);
+		headers = new MimeHeaders().addRawValue(MimeHeaders.CONTENT_TYPE, "multipart/form-data; boundary=1234");
+		Assert.assertTrue(factory.create(null, headers) instanceof FormDataEntity);
+		headers = new MimeHeaders().addRawValue(MimeHeaders.CONTENT_TYPE, "application/x-unknown");
+		Assert.assertTrue(factory.create(null, headers) instanceof BinaryEntity);
+		
+		factory.register("x-test-factory", null, EmptyEntity::new);
+		factory.register("x-test-factory", "class", BinaryEntity.class);
+		headers = new MimeHeaders().addRawValue(MimeHeaders.CONTENT_TYPE, "x-test-factory/anything");
+		Assert.assertTrue(factory.create(null, headers) instanceof EmptyEntity);
+		headers = new MimeHeaders().addRawValue(MimeHeaders.CONTENT_TYPE, "x-test-factory/class");
+		Assert.assertEquals(BinaryEntity.class, factory.create(null, headers).getClass());
+	}
+	
+	@Test
+	public void testParserFilter() throws Exception {
+		MimeEntity.Parser parser = new MimeEntity.Parser(EmptyEntity::new);
+		parser.setFilter(headers -> headers.has("X-Accept"));
+		parser.consume(ByteBuffer.wrap("X-Reject: 1\r\n\r\nskipped body".getBytes(StandardCharsets.US_ASCII))).blockThrow(0);
+		Assert.assertTrue(parser.isSkipped());
+		parser.end().blockThrow(0);
+		// a skipped entity is not an error, the result is null
+		Assert.assertTrue(parser.getOutput().isSuccessful());
+		Assert.assertNull(parser.getOutput().getResult());
+		
+		parser.reset();
+		Assert.assertFalse(parser.isSkipped());
+		Assert.assertFalse(parser.getOutput().isDone());
+	}
+	
+	@Test
+	public void testFactoryRegistrationWhileDispatching() throws Exception {
+		DefaultMimeEntityFactory factory = DefaultMimeEntityFactory.getInstance();
+		MimeHeaders headers = new MimeHeaders().addRawValue(MimeHeaders.CONTENT_TYPE, "x-test-race/a");
+		AtomicBoolean stop = new AtomicBoolean(false);
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; ++i) {
+			threads[i] = new Thread(() -> {
+				while (!stop.get())
+					factory.create(null, headers);
+			});
+			threads[i].start();
+		}
+		try {
+			for (int i = 0; i < 200; ++i) {
+				// a factory resolved before the registration must not be used after it
+				boolean empty = (i % 2) == 0;
+				if (empty)
+					factory.register("x-test-race", "a", EmptyEntity::new);
+				else
+					factory.register("x-test-race", "a", BinaryEntity::new);
+				Assert.assertEquals(empty ? EmptyEntity.class : BinaryEntity.class, factory.create(null, headers).getClass());
+			}
+		} finally {
+			stop.set(true);
+			for (Thread t : threads)
+				t.join();
+		}
+	}
+	
 }
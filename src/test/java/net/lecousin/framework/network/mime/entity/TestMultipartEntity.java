@@ -3,13 +3,25 @@ package net.lecousin.framework.network.mime.entity;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import javax.mail.internet.MimeMultipart;
 
+import net.lecousin.framework.concurrent.async.Async;
 import net.lecousin.framework.concurrent.async.AsyncSupplier;
+import net.lecousin.framework.concurrent.async.IAsync;
 import net.lecousin.framework.concurrent.threads.Task;
 import net.lecousin.framework.concurrent.threads.Threading;
+import net.lecousin.framework.concurrent.util.AsyncConsumer;
 import net.lecousin.framework.concurrent.util.AsyncProducer;
 import net.lecousin.framework.core.test.LCCoreAbstractTest;
 import net.lecousin.framework.io.IO.Seekable.SeekType;
@@ -18,12 +30,15 @@ import net.lecousin.framework.io.IOFromInputStream;
 import net.lecousin.framework.io.IOUtil;
 import net.lecousin.framework.io.buffering.ByteBuffersIO;
 import net.lecousin.framework.io.buffering.SimpleBufferedReadable;
+import net.lecousin.framework.math.RangeLong;
 import net.lecousin.framework.network.mime.MimeException;
 import net.lecousin.framework.network.mime.MimeUtil;
 import net.lecousin.framework.network.mime.header.InternetAddressListHeaderValue;
 import net.lecousin.framework.network.mime.header.MimeHeaders;
 import net.lecousin.framework.network.mime.header.ParameterizedHeaderValue;
 import net.lecousin.framework.text.CharArrayStringBuffer;
+import net.lecousin.framework.util.Pair;
+import net.lecousin.framework.util.Triple;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -40,18 +55,30 @@ public class TestMultipartEntity extends LCCoreAbstractTest {
 		testParseMultipart("multipart2.raw");
 	}
 	
+	@Test
+	public void testParseMultipartWithConcurrentDecoding() throws Exception {
+		testParseMultipart("multipart1.raw", 1);
+		testParseMultipart("multipart1.raw", 2);
+		testParseMultipart("multipart2.raw", 3);
+	}
+	
 	private void testParseMultipart(String filename) throws Exception {
+		testParseMultipart(filename, 0);
+	}
+	
+	private void testParseMultipart(String filename, int concurrentDecoding) throws Exception {
 		try (IOFromInputStream body = new IOFromInputStream(this.getClass().getClassLoader().getResourceAsStream(filename), filename, Threading.getCPUTaskManager(), Task.Priority.NORMAL)) {
-			testParseMultipart(body.createProducer(false));
+			testParseMultipart(body.createProducer(false), concurrentDecoding);
 		}
 		try (IOFromInputStream body = new IOFromInputStream(this.getClass().getClassLoader().getResourceAsStream(filename), filename, Threading.getCPUTaskManager(), Task.Priority.NORMAL)) {
-			testParseMultipart(body.createProducer(8, false, false));
+			testParseMultipart(body.createProducer(8, false, false), concurrentDecoding);
 		}
 	}
 	
-	private static void testParseMultipart(AsyncProducer<ByteBuffer, IOException> producer) throws Exception {
+	private static void testParseMultipart(AsyncProducer<ByteBuffer, IOException> producer, int concurrentDecoding) throws Exception {
 		MultipartEntity entity = new MultipartEntity("---------------------------114772229410704779042051621609".getBytes(), "form-data");
 		entity.setPartFactory(DefaultMimeEntityFactory.getInstance());
+		entity.setConcurrentDecoding(concurrentDecoding);
 		producer.toConsumer(entity.createConsumer(null), "Parse MIME", Task.Priority.NORMAL).blockThrow(0);
 		Assert.assertEquals(5, entity.getParts().size());
 		Assert.assertEquals(3, entity.getPartsOfType(BinaryEntity.class).size());
@@ -74,6 +101,397 @@ public class TestMultipartEntity extends LCCoreAbstractTest {
 		}
 	}
 	
+	/** Part recording its body, with a hook to control the end of its decoding. */
+	private static final class DecodedPart extends MimeEntity {
+		
+		private DecodedPart(MimeEntity parent, MimeHeaders headers) {
+			super(parent, headers);
+		}
+		
+		private StringBuilder body = new StringBuilder();
+		private Supplier<IAsync<IOException>> onEnd = () -> new Async<>(true);
+		private IOException consumeError = null;
+		
+		private int getIndex() {
+			return Integer.parseInt(headers.getFirstRawValue("X-Part"));
+		}
+		
+		@Override
+		public AsyncSupplier<Pair<Long, AsyncProducer<ByteBuffer, IOException>>, IOException> createBodyProducer() {
+			return new AsyncSupplier<>(null, new IOException("Not supported"));
+		}
+		
+		@Override
+		public boolean canProduceBodyRange() {
+			return false;
+		}
+		
+		@Override
+		public Triple<RangeLong, Long, BinaryEntity> createBodyRange(RangeLong range) {
+			return null;
+		}
+		
+		@Override
+		public AsyncConsumer<ByteBuffer, IOException> createConsumer(Long size) {
+			return new AsyncConsumer<ByteBuffer, IOException>() {
+				@Override
+				public IAsync<IOException> consume(ByteBuffer data) {
+					if (consumeError != null)
+						return new Async<>(consumeError);
+					while (data.hasRemaining())
+						body.append((char)(data.get() & 0xFF));
+					return new Async<>(true);
+				}
+				
+				@Override
+				public IAsync<IOException> end() {
+					return onEnd.get();
+				}
+				
+				@Override
+				public void error(IOException error) {
+					// nothing
+				}
+			};
+		}
+		
+	}
+	
+	private static byte[] multipartBody(int nbParts) {
+		StringBuilder s = new StringBuilder();
+		for (int i = 1; i <= nbParts; ++i)
+			s.append("\r\n--b0und\r\nX-Part: ").append(i).append("\r\n\r\nbody of part ").append(i);
+		s.append("\r\n--b0und--\r\n");
+		return s.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	@Test
+	public void testConcurrentDecodingOutOfOrder() throws Exception {
+		MultipartEntity entity = new MultipartEntity("b0und".getBytes(StandardCharsets.US_ASCII), "mixed");
+		entity.setConcurrentDecoding(3);
+		Async<IOException> firstCanEnd = new Async<>();
+		List<Integer> ended = Collections.synchronizedList(new ArrayList<>());
+		entity.setPartFactory((parent, headers) -> {
+			DecodedPart part = new DecodedPart(parent, headers);
+			int index = part.getIndex();
+			part.onEnd = () -> {
+				if (index == 1) {
+					// the first part is decoded only once the third one is
+					Async<IOException> done = new Async<>();
+					firstCanEnd.onDone(() -> {
+						ended.add(Integer.valueOf(1));
+						done.unblock();
+					});
+					return done;
+				}
+				ended.add(Integer.valueOf(index));
+				if (index == 3)
+					firstCanEnd.unblock();
+				return new Async<>(true);
+			};
+			return part;
+		});
+		AsyncConsumer<ByteBuffer, IOException> consumer = entity.createConsumer(null);
+		consumer.consume(ByteBuffer.wrap(multipartBody(3))).blockThrow(0);
+		consumer.end().blockThrow(0);
+		Assert.assertEquals(3, ended.size());
+		Assert.assertTrue(ended.indexOf(Integer.valueOf(1)) > ended.indexOf(Integer.valueOf(3)));
+		// parts are added in their order, with the multi-part as parent
+		Assert.assertEquals(3, entity.getParts().size());
+		for (int i = 0; i < 3; ++i) {
+			DecodedPart part = (DecodedPart)entity.getParts().get(i);
+			Assert.assertEquals(i + 1, part.getIndex());
+			Assert.assertEquals("body of part " + (i + 1), part.body.toString());
+			Assert.assertSame(entity, part.getParent());
+		}
+	}
+	
+	@Test
+	public void testConcurrentDecodingLimit() throws Exception {
+		MultipartEntity entity = new MultipartEntity("b0und".getBytes(StandardCharsets.US_ASCII), "mixed");
+		entity.setConcurrentDecoding(2);
+		AtomicInteger decoding = new AtomicInteger(0);
+		AtomicInteger maxDecoding = new AtomicInteger(0);
+		entity.setPartFactory((parent, headers) -> {
+			DecodedPart part = new DecodedPart(parent, headers);
+			int nb = decoding.incrementAndGet();
+			maxDecoding.accumulateAndGet(nb, Math::max);
+			part.onEnd = () -> {
+				// the decoding takes some time, so the next parts are started meanwhile
+				Async<IOException> done = new Async<>();
+				new Thread(() -> {
+					try {
+						Thread.sleep(50);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					decoding.decrementAndGet();
+					done.unblock();
+				}).start();
+				return done;
+			};
+			return part;
+		});
+		AsyncConsumer<ByteBuffer, IOException> consumer = entity.createConsumer(null);
+		consumer.consume(ByteBuffer.wrap(multipartBody(6))).blockThrow(0);
+		consumer.end().blockThrow(0);
+		Assert.assertEquals(6, entity.getParts().size());
+		Assert.assertEquals(2, maxDecoding.get());
+		Assert.assertEquals(0, decoding.get());
+	}
+	
+	@Test
+	public void testConcurrentDecodingError() throws Exception {
+		MultipartEntity entity = new MultipartEntity("b0und".getBytes(StandardCharsets.US_ASCII), "mixed");
+		entity.setConcurrentDecoding(2);
+		entity.setPartFactory((parent, headers) -> {
+			DecodedPart part = new DecodedPart(parent, headers);
+			if (part.getIndex() == 2)
+				part.consumeError = new IOException("Test decoding error");
+			return part;
+		});
+		AsyncConsumer<ByteBuffer, IOException> consumer = entity.createConsumer(null);
+		IAsync<IOException> consume = consumer.consume(ByteBuffer.wrap(multipartBody(4)));
+		consume.block(0);
+		Assert.assertTrue(consume.hasError());
+		Assert.assertEquals("Test decoding error", consume.getError().getMessage());
+		Assert.assertEquals(0, entity.getParts().size());
+	}
+	
+	@Test
+	public void testConcurrentDecodingInNestedMultipart() throws Exception {
+		String body = "\r\n--outer\r\nContent-Type: multipart/mixed; boundary=inner\r\n\r\n"
+			+ "\r\n--inner\r\nX-Part: 1\r\n\r\nfirst\r\n--inner\r\nX-Part: 2\r\n\r\nsecond\r\n--inner--\r\n"
+			+ "\r\n--outer--\r\n";
+		MultipartEntity entity = new MultipartEntity("outer".getBytes(StandardCharsets.US_ASCII), "mixed");
+		entity.setConcurrentDecoding(2);
+		entity.setPartFactory((parent, headers) ->
+			headers.has(MimeHeaders.CONTENT_TYPE) ? new MultipartEntity(parent, headers) : new DecodedPart(parent, headers));
+		AsyncConsumer<ByteBuffer, IOException> consumer = entity.createConsumer(null);
+		consumer.consume(ByteBuffer.wrap(body.getBytes(StandardCharsets.US_ASCII))).blockThrow(0);
+		consumer.end().blockThrow(0);
+		Assert.assertEquals(1, entity.getParts().size());
+		// the nested multi-part is created with its parent, so it uses the same concurrent decoding
+		MultipartEntity nested = (MultipartEntity)entity.getParts().get(0);
+		Assert.assertSame(entity, nested.getParent());
+		Assert.assertEquals(2, nested.getConcurrentDecoding());
+		Assert.assertEquals(2, nested.getParts().size());
+		Assert.assertEquals("first", ((DecodedPart)nested.getParts().get(0)).body.toString());
+		Assert.assertEquals("second", ((DecodedPart)nested.getParts().get(1)).body.toString());
+		Assert.assertSame(nested, nested.getParts().get(1).getParent());
+	}
+	
+	@Test
+	public void testPartFilter() throws Exception {
+		testPartFilter(0);
+		testPartFilter(2);
+	}
+	
+	private void testPartFilter(int concurrentDecoding) throws Exception {
+		String filename = "multipart1.raw";
+		try (IOFromInputStream body = new IOFromInputStream(this.getClass().getClassLoader().getResourceAsStream(filename), filename, Threading.getCPUTaskManager(), Task.Priority.NORMAL)) {
+			MultipartEntity entity = new MultipartEntity("---------------------------114772229410704779042051621609".getBytes(), "form-data");
+			entity.setPartFactory(DefaultMimeEntityFactory.getInstance());
+			entity.setConcurrentDecoding(concurrentDecoding);
+			entity.setPartFilter(headers -> {
+				try {
+					return "email".equals(headers.getFirstValue(MimeHeaders.CONTENT_DISPOSITION, ParameterizedHeaderValue.class).getParameter("name"));
+				} catch (MimeException e) {
+					return false;
+				}
+			});
+			body.createProducer(8, false, false).toConsumer(entity.createConsumer(null), "Parse MIME", Task.Priority.NORMAL).blockThrow(0);
+			Assert.assertEquals(1, entity.getParts().size());
+			MimeEntity p = entity.getParts().get(0);
+			Assert.assertEquals("coolaj86@gmail.com", IOUtil.readFullyAsStringSync(((BinaryEntity)p).getContent(), StandardCharsets.US_ASCII));
+		}
+	}
+	
+	@Test
+	public void testPartFilterWithSplitBoundary() throws Exception {
+		byte[] body = multipartBody(3);
+		// boundary closing the skipped part 2
+		int bound = new String(body, StandardCharsets.US_ASCII).indexOf("\r\n--b0und\r\nX-Part: 3");
+		for (int concurrentDecoding = 0; concurrentDecoding <= 2; concurrentDecoding += 2) {
+			for (int split = bound; split <= bound + 11; ++split) {
+				MultipartEntity entity = new MultipartEntity("b0und".getBytes(StandardCharsets.US_ASCII), "mixed");
+				entity.setConcurrentDecoding(concurrentDecoding);
+				List<Integer> created = new LinkedList<>();
+				entity.setPartFactory((parent, headers) -> {
+					DecodedPart part = new DecodedPart(parent, headers);
+					created.add(Integer.valueOf(part.getIndex()));
+					return part;
+				});
+				entity.setPartFilter(headers -> !"2".equals(headers.getFirstRawValue("X-Part")));
+				AsyncConsumer<ByteBuffer, IOException> consumer = entity.createConsumer(null);
+				consumer.consume(ByteBuffer.wrap(body, 0, split).slice()).blockThrow(0);
+				consumer.consume(ByteBuffer.wrap(body, split, body.length - split).slice()).blockThrow(0);
+				consumer.end().blockThrow(0);
+				String msg = "split at " + (split - bound) + " with concurrent decoding " + concurrentDecoding;
+				Assert.assertFalse(msg, created.contains(Integer.valueOf(2)));
+				Assert.assertEquals(msg, 2, entity.getParts().size());
+				Assert.assertEquals(msg, "body of part 1", ((DecodedPart)entity.getParts().get(0)).body.toString());
+				Assert.assertEquals(msg, "body of part 3", ((DecodedPart)entity.getParts().get(1)).body.toString());
+			}
+		}
+	}
+	
+	@Test
+	public void testStreamingParts() throws Exception {
+		String filename = "multipart1.raw";
+		try (IOFromInputStream body = new IOFromInputStream(this.getClass().getClassLoader().getResourceAsStream(filename), filename, Threading.getCPUTaskManager(), Task.Priority.NORMAL)) {
+			MultipartEntity entity = new MultipartEntity("---------------------------114772229410704779042051621609".getBytes(), "form-data");
+			List<String> names = new LinkedList<>();
+			Map<String, TextEntity> contents = new HashMap<>();
+			int[] ended = new int[1];
+			AsyncConsumer<ByteBuffer, IOException> consumer = entity.createStreamingConsumer(new MultipartEntity.PartHandler() {
+				@Override
+				public AsyncConsumer<ByteBuffer, IOException> onPartHeaders(MimeHeaders headers) throws IOException {
+					String name;
+					try {
+						name = headers.getFirstValue(MimeHeaders.CONTENT_DISPOSITION, ParameterizedHeaderValue.class).getParameter("name");
+					} catch (MimeException e) {
+						throw new IOException(e);
+					}
+					names.add(name);
+					if (!"name".equals(name) && !"email".equals(name))
+						return null;
+					TextEntity text = new TextEntity("", StandardCharsets.US_ASCII, "text/plain");
+					contents.put(name, text);
+					return text.createConsumer(null);
+				}
+				
+				@Override
+				public void onPartEnd(MimeHeaders headers) {
+					ended[0]++;
+				}
+			});
+			body.createProducer(false).toConsumer(consumer, "Parse MIME", Task.Priority.NORMAL).blockThrow(0);
+			Assert.assertEquals(5, names.size());
+			Assert.assertEquals(5, ended[0]);
+			Assert.assertEquals(0, entity.getParts().size());
+			Assert.assertEquals("AJ ONeal", contents.get("name").getText());
+			Assert.assertEquals("coolaj86@gmail.com", contents.get("email").getText());
+		}
+	}
+	
+	@Test
+	public void testPartIterator() throws Exception {
+		String filename = "multipart1.raw";
+		try (IOFromInputStream body = new IOFromInputStream(this.getClass().getClassLoader().getResourceAsStream(filename), filename, Threading.getCPUTaskManager(), Task.Priority.NORMAL)) {
+			MultipartEntity entity = new MultipartEntity("---------------------------114772229410704779042051621609".getBytes(), "form-data");
+			MultipartIterator it = new MultipartIterator(entity);
+			Async<IOException> parse = body.createProducer(8, false, false).toConsumer(it.getConsumer(), "Parse MIME", Task.Priority.NORMAL);
+			int nb = 0;
+			MultipartIterator.Part part;
+			while ((part = it.next().blockResult(0)) != null) {
+				nb++;
+				String name = part.getHeaders().getFirstValue(MimeHeaders.CONTENT_DISPOSITION, ParameterizedHeaderValue.class).getParameter("name");
+				if (!"name".equals(name) && !"email".equals(name))
+					continue; // body discarded by the next call
+				StringBuilder s = new StringBuilder();
+				ByteBuffer b;
+				while ((b = part.getBody().produce().blockResult(0)) != null)
+					while (b.hasRemaining())
+						s.append((char)(b.get() & 0xFF));
+				Assert.assertEquals("name".equals(name) ? "AJ ONeal" : "coolaj86@gmail.com", s.toString());
+			}
+			parse.blockThrow(0);
+			Assert.assertEquals(5, nb);
+			Assert.assertEquals(0, entity.getParts().size());
+		}
+	}
+	
+	// near misses of the boundary in the bodies: \r\n--b0undX, \r\n--b0un\r, -- b0und, a \r just before a boundary,
+	// and a final boundary followed by something else than \r\n
+	private static final String SPLIT_PART1 = "part1 \r\n--b0undX\r\n--b0un\r\r\n-- b0und\r\n--b0und\r";
+	private static final String SPLIT_PART2 = "\r\n--b0und--x\r\n--b0und--\r\r";
+	private static final String SPLIT_BODY = "preamble\r\n--b0und\r\nX: 1\r\n\r\n" + SPLIT_PART1
+		+ "\r\n--b0und\r\nX: 2\r\n\r\n" + SPLIT_PART2 + "\r\n--b0und--\r\nepilogue";
+	
+	@Test
+	public void testBoundarySplitInBuffers() throws Exception {
+		byte[] body = SPLIT_BODY.getBytes(StandardCharsets.US_ASCII);
+		for (boolean direct : new boolean[] { false, true }) {
+			assertSplitParts(body, direct);
+			// boundary between part 1 and part 2
+			int bound = SPLIT_BODY.indexOf("\r\n--b0und\r\nX: 2");
+			// at the very start of a buffer
+			assertSplitParts(body, direct, bound);
+			// at the very end of a buffer
+			assertSplitParts(body, direct, bound + 11);
+			// inside the leading CRLF
+			assertSplitParts(body, direct, bound + 1);
+			// across 3 buffers, split inside the leading CRLF and inside the boundary
+			assertSplitParts(body, direct, bound + 1, bound + 6);
+			assertSplitParts(body, direct, bound + 2, bound + 4);
+			// final boundary split inside its leading CRLF and inside its trailing --
+			bound = SPLIT_BODY.indexOf("\r\n--b0und--\r\nepilogue");
+			assertSplitParts(body, direct, bound + 1, bound + 10);
+			// any split in 2 buffers, and in 3 buffers with a middle buffer up to the length of a final boundary
+			for (int i = 1; i < body.length; ++i) {
+				assertSplitParts(body, direct, i);
+				for (int j = i + 1; j < body.length && j <= i + 15; ++j)
+					assertSplitParts(body, direct, i, j);
+			}
+		}
+	}
+	
+	private static void assertSplitParts(byte[] body, boolean direct, int... splits) throws Exception {
+		MultipartEntity entity = new MultipartEntity("b0und".getBytes(StandardCharsets.US_ASCII), "mixed");
+		List<StringBuilder> parts = new LinkedList<>();
+		AsyncConsumer<ByteBuffer, IOException> consumer = entity.createStreamingConsumer(new MultipartEntity.PartHandler() {
+			@Override
+			public AsyncConsumer<ByteBuffer, IOException> onPartHeaders(MimeHeaders headers) {
+				StringBuilder s = new StringBuilder();
+				parts.add(s);
+				return new AsyncConsumer<ByteBuffer, IOException>() {
+					@Override
+					public IAsync<IOException> consume(ByteBuffer data) {
+						while (data.hasRemaining())
+							s.append((char)(data.get() & 0xFF));
+						return new Async<>(true);
+					}
+					
+					@Override
+					public IAsync<IOException> end() {
+						return new Async<>(true);
+					}
+					
+					@Override
+					public void error(IOException error) {
+						// nothing
+					}
+				};
+			}
+			
+			@Override
+			public void onPartEnd(MimeHeaders headers) {
+				// nothing
+			}
+		});
+		int pos = 0;
+		for (int i = 0; i <= splits.length; ++i) {
+			int end = i < splits.length ? splits[i] : body.length;
+			ByteBuffer buffer;
+			if (direct) {
+				buffer = ByteBuffer.allocateDirect(end - pos);
+				buffer.put(body, pos, end - pos);
+				buffer.flip();
+			} else {
+				// slice to have an array offset
+				buffer = ByteBuffer.wrap(body, pos, end - pos).slice();
+			}
+			consumer.consume(buffer).blockThrow(0);
+			pos = end;
+		}
+		consumer.end().blockThrow(0);
+		String split = (direct ? "direct " : "heap ") + Arrays.toString(splits);
+		Assert.assertEquals(split, 2, parts.size());
+		Assert.assertEquals(split, SPLIT_PART1, parts.get(0).toString());
+		Assert.assertEquals(split, SPLIT_PART2, parts.get(1).toString());
+	}
+	
 	@Test
 	public void testGenerateMailWithMultipart() throws Exception {
 		MultipartEntity mailText = new MultipartEntity("alternative");
@@ -0,0 +1,99 @@
+package net.lecousin.framework.network.mime.negotiation;
+
+import net.lecousin.framework.core.test.LCCoreAbstractTest;
+import net.lecousin.framework.network.mime.header.MimeHeaders;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestContentNegotiator extends LCCoreAbstractTest {
+
+	@Test
+	public void testAcceptedValues() throws Exception {
+		AcceptedValues accepted = AcceptedValues.parse("text/*;q=0.3, text/html;q=0.7, text/html;level=1, text/html;level=2;q=0.4, */*;q=0.5");
+		Assert.assertEquals(5, accepted.getRanges().size());
+		Assert.assertEquals("text/html;level=1", accepted.getRanges().get(0).toString());
+		Assert.assertEquals("text/html;q=0.700", accepted.getRanges().get(1).toString());
+		Assert.assertEquals("*/*", accepted.getRanges().get(2).getValue());
+		Assert.assertEquals(1000, accepted.getQuality("text/html;level=1"));
+		Assert.assertEquals(700, accepted.getQuality("text/html"));
+		Assert.assertEquals(300, accepted.getQuality("text/plain"));
+		Assert.assertEquals(500, accepted.getQuality("image/jpeg"));
+		Assert.assertEquals(400, accepted.getQuality("text/html;level=2"));
+		Assert.assertEquals(700, accepted.getQuality("TEXT/HTML;level=3"));
+		
+		accepted = AcceptedValues.parse("gzip, identity;q=0.5, *;q=0");
+		Assert.assertEquals(1000, accepted.getQuality("gzip"));
+		Assert.assertEquals(500, accepted.getQuality("identity"));
+		Assert.assertEquals(0, accepted.getQuality("br"));
+		
+		Assert.assertEquals(0, AcceptedValues.Range.parseQuality("0"));
+		Assert.assertEquals(50, AcceptedValues.Range.parseQuality("0.05"));
+		Assert.assertEquals(1000, AcceptedValues.Range.parseQuality("1.000"));
+		Assert.assertEquals(-1, AcceptedValues.Range.parseQuality("abc"));
+		Assert.assertEquals(-1, AcceptedValues.Range.parseQuality("1.5"));
+		Assert.assertEquals(-1, AcceptedValues.Range.parseQuality(""));
+	}
+	
+	@Test
+	public void testInvalidQuality() throws Exception {
+		// a range with an invalid quality is ignored
+		AcceptedValues accepted = AcceptedValues.parse("gzip;q=abc, br;q=0.5, *;q=x");
+		Assert.assertEquals(1, accepted.getRanges().size());
+		Assert.assertEquals(0, accepted.getQuality("gzip"));
+		Assert.assertEquals(500, accepted.getQuality("br"));
+		Assert.assertEquals(0, accepted.getQuality("identity"));
+		Assert.assertEquals("br", new ContentNegotiator("gzip", "br").select("gzip;q=2, br;q=0.5"));
+	}
+	
+	@Test
+	public void testLanguageRanges() throws Exception {
+		AcceptedValues accepted = AcceptedValues.parse("en-US, en;q=0.8, fr-CA;q=0.5, de-ch;q=0.1, *;q=0.2");
+		Assert.assertEquals(1000, accepted.getQuality("en-US"));
+		Assert.assertEquals(1000, accepted.getQuality("en-us"));
+		Assert.assertEquals(1000, accepted.getQuality("en-US-x-private"));
+		Assert.assertEquals(800, accepted.getQuality("en"));
+		Assert.assertEquals(800, accepted.getQuality("en-GB"));
+		// a prefix must end on a sub-tag boundary
+		Assert.assertEquals(200, accepted.getQuality("eng"));
+		Assert.assertEquals(200, accepted.getQuality("fr"));
+		Assert.assertEquals(500, accepted.getQuality("fr-CA"));
+		// the most specific range is used, even with a lower quality
+		Assert.assertEquals(100, accepted.getQuality("de-CH"));
+		Assert.assertEquals(200, accepted.getQuality("de"));
+		accepted = AcceptedValues.parse("en;q=0.9, en-gb;q=0.3");
+		Assert.assertEquals(300, accepted.getQuality("en-GB"));
+		Assert.assertEquals(900, accepted.getQuality("en-US"));
+		// a media type does not use prefix matching
+		accepted = AcceptedValues.parse("text/html");
+		Assert.assertEquals(0, accepted.getQuality("text/html-x"));
+		
+		ContentNegotiator negotiator = new ContentNegotiator("fr", "en-GB", "en-US");
+		Assert.assertEquals("en-US", negotiator.select("en-us, en;q=0.5"));
+		Assert.assertEquals("en-GB", negotiator.select("de, en;q=0.5"));
+		Assert.assertNull(negotiator.select("de, en-AU"));
+	}
+	
+	@Test
+	public void testNegotiator() {
+		ContentNegotiator negotiator = new ContentNegotiator("application/json", "text/html", "text/plain");
+		Assert.assertEquals("application/json", negotiator.select((String)null));
+		Assert.assertEquals("application/json", negotiator.select(""));
+		Assert.assertEquals("text/html", negotiator.select("text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8"));
+		Assert.assertEquals("text/plain", negotiator.select("text/*;q=0.5, text/plain"));
+		Assert.assertEquals("text/html", negotiator.select("text/*, application/json;q=0.2"));
+		Assert.assertNull(negotiator.select("image/png"));
+		Assert.assertNull(negotiator.select("*/*;q=0"));
+		// decisions are cached
+		long hits = negotiator.getCache().getHits();
+		Assert.assertEquals("text/plain", negotiator.select("text/*;q=0.5, text/plain"));
+		Assert.assertNull(negotiator.select("image/png"));
+		Assert.assertEquals(hits + 2, negotiator.getCache().getHits());
+		
+		MimeHeaders headers = new MimeHeaders();
+		headers.addRawValue("Accept-Encoding", "br;q=0.8, gzip");
+		ContentNegotiator encodings = new ContentNegotiator("br", "gzip", "identity");
+		Assert.assertEquals("gzip", encodings.select(headers, "accept-encoding"));
+	}
+
+}